@@ -10,6 +10,8 @@ import okhttp3.Interceptor
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
 import org.junit.Test
 import org.junit.runner.RunWith
 
@@ -49,4 +51,15 @@ class AuthgearInterceptorTest {
                 .get().build()
         ).execute()
     }
-}
\ No newline at end of file
+
+    @Test
+    fun shareDPoPNoncesPerAuthgear() {
+        val application =
+            InstrumentationRegistry.getInstrumentation().context.applicationContext as Application
+        val authgear = Authgear(application, "clientId", "http://localhost:3000", name = "a")
+        val otherAuthgear = Authgear(application, "clientId", "http://localhost:3001", name = "b")
+
+        assertSame(RequestAuthorization.of(authgear), RequestAuthorization.of(authgear))
+        assertNotSame(RequestAuthorization.of(authgear), RequestAuthorization.of(otherAuthgear))
+    }
+}
@@ -0,0 +1,67 @@
+package com.oursky.authgear.okhttp
+
+import com.oursky.authgear.Authgear
+import okhttp3.Authenticator
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.Route
+
+/**
+ * Refreshes the access token and retries once when a request is rejected with 401.
+ *
+ * Use it together with [AuthgearInterceptor]. The interceptor attaches the cached access token,
+ * which is usually fresh, and this authenticator recovers when the server disagrees, for example
+ * because the access token was revoked.
+ *
+ * ```
+ * val client = OkHttpClient.Builder()
+ *     .addInterceptor(AuthgearInterceptor(authgear))
+ *     .authenticator(AuthgearAuthenticator(authgear))
+ *     .build()
+ * ```
+ *
+ * Concurrent 401 responses share a single refresh.
+ *
+ * @param isDPoPEnabled Must be the same as the one given to [AuthgearInterceptor].
+ * If true, a 401 response asking for a DPoP nonce is retried with the nonce instead.
+ */
+class AuthgearAuthenticator @JvmOverloads constructor(
+    private val authgear: Authgear,
+    private val isDPoPEnabled: Boolean = false
+) : Authenticator {
+    private val authorization = RequestAuthorization.of(authgear)
+
+    override fun authenticate(route: Route?, response: Response): Request? {
+        val request = response.request
+        val rejectedAccessToken =
+            RequestAuthorization.parseAccessToken(request.header("authorization")) ?: return null
+
+        val priorResponses = generateSequence(response.priorResponse) { it.priorResponse }
+
+        if (isDPoPEnabled) {
+            authorization.rememberDPoPNonce(response)
+            if (isNonceError(response)) {
+                // Retry with the nonce once. The access token itself was not rejected.
+                if (priorResponses.any { isNonceError(it) }) {
+                    return null
+                }
+                return authorization.authorize(authgear, request, rejectedAccessToken, isDPoPEnabled)
+            }
+        }
+
+        // Refresh only once.
+        if (priorResponses.any { it.code == 401 && !isNonceError(it) }) {
+            return null
+        }
+        val accessToken = authgear.refreshRejectedAccessTokenSync(rejectedAccessToken) ?: return null
+        if (accessToken == rejectedAccessToken) {
+            // The access token could not be refreshed, retrying is pointless.
+            return null
+        }
+        return authorization.authorize(authgear, request, accessToken, isDPoPEnabled)
+    }
+
+    private fun isNonceError(response: Response): Boolean {
+        return isDPoPEnabled && RequestAuthorization.isDPoPNonceError(response)
+    }
+}
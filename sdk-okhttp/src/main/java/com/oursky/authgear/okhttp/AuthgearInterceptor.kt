@@ -4,11 +4,42 @@ import com.oursky.authgear.Authgear
 import okhttp3.Interceptor
 import okhttp3.Response
 
-class AuthgearInterceptor(private val authgear: Authgear) : Interceptor {
+/**
+ * Attaches the access token to every request.
+ *
+ * @param isDPoPEnabled If true, the access token is sent with the DPoP scheme along with a DPoP proof,
+ * which is generated with the key bound to the access token. The resource server must support DPoP.
+ * If DPoP is not supported on the device, the bearer scheme is used.
+ */
+class AuthgearInterceptor @JvmOverloads constructor(
+    private val authgear: Authgear,
+    private val isDPoPEnabled: Boolean = false
+) : Interceptor {
+    private val authorization = RequestAuthorization.of(authgear)
+
     override fun intercept(chain: Interceptor.Chain): Response {
         val accessToken = authgear.refreshAccessTokenIfNeededSync()
-        return chain.proceed(chain.request().newBuilder()
-            .addHeader("authorization", "bearer ${accessToken ?: ""}")
-            .build())
+        val request = authorization.authorize(authgear, chain.request(), accessToken, isDPoPEnabled)
+        val response = chain.proceed(request)
+        if (!isDPoPEnabled) {
+            return response
+        }
+        authorization.rememberDPoPNonce(response)
+        if (!RequestAuthorization.isDPoPNonceError(response)) {
+            return response
+        }
+        // AuthgearAuthenticator runs inside chain.proceed(). A prior nonce error means it has already retried.
+        val priorResponses = generateSequence(response.priorResponse) { it.priorResponse }
+        if (priorResponses.any { RequestAuthorization.isDPoPNonceError(it) }) {
+            return response
+        }
+        // The server requires a nonce. Retry once with the nonce it gave.
+        response.close()
+        val retriedResponse = chain.proceed(
+            authorization.authorize(authgear, chain.request(), accessToken, isDPoPEnabled)
+        )
+        // Keep the nonce of the retried response for the next request.
+        authorization.rememberDPoPNonce(retriedResponse)
+        return retriedResponse
     }
 }
@@ -0,0 +1,130 @@
+package com.oursky.authgear.okhttp
+
+import com.oursky.authgear.net.HTTPClient
+import com.oursky.authgear.net.HTTPRequest
+import com.oursky.authgear.net.HTTPResponse
+import com.oursky.authgear.net.SuspendHTTPClient
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.suspendCancellableCoroutine
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.ConnectionPool
+import okhttp3.Headers
+import okhttp3.MediaType.Companion.toMediaTypeOrNull
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.RequestBody
+import okhttp3.RequestBody.Companion.toRequestBody
+import okhttp3.Response
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.resumeWithException
+
+/**
+ * An [HTTPClient] backed by OkHttp.
+ *
+ * Unlike [com.oursky.authgear.net.DefaultHTTPClient], it speaks HTTP/2.
+ * Concurrent SDK calls, such as fetching user info while refreshing the ID token,
+ * are multiplexed over a single connection to the Authgear endpoint.
+ *
+ * ```
+ * val authgear = Authgear(application, clientId, endpoint, httpClient = OkHttpHTTPClient())
+ * ```
+ *
+ * @param okHttpClient The client to send requests with. By default, a client with a connection pool shared by
+ * all instances of this class is used. If you pass your own client, do NOT add [AuthgearInterceptor] to it,
+ * because the SDK's own requests must not be intercepted by it.
+ */
+class OkHttpHTTPClient @JvmOverloads constructor(
+    private val okHttpClient: OkHttpClient = sharedClient
+) : HTTPClient, SuspendHTTPClient {
+    companion object {
+        private val sharedConnectionPool = ConnectionPool()
+
+        private val sharedClient: OkHttpClient by lazy {
+            OkHttpClient.Builder()
+                .connectionPool(sharedConnectionPool)
+                .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .build()
+        }
+    }
+
+    // newBuilder() shares the connection pool and the dispatcher with the original client.
+    private val okHttpClientWithoutRedirect: OkHttpClient by lazy {
+        okHttpClient.newBuilder()
+            .followRedirects(false)
+            .followSslRedirects(false)
+            .build()
+    }
+
+    override fun send(request: HTTPRequest): HTTPResponse {
+        return newCall(request).execute().toHTTPResponse()
+    }
+
+    /**
+     * Cancelling the calling coroutine cancels the OkHttp call.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    override suspend fun execute(request: HTTPRequest): HTTPResponse {
+        val call = newCall(request)
+        return suspendCancellableCoroutine { continuation ->
+            continuation.invokeOnCancellation { call.cancel() }
+            call.enqueue(object : Callback {
+                override fun onFailure(call: Call, e: IOException) {
+                    // Ignored if the coroutine has been cancelled.
+                    continuation.resumeWithException(e)
+                }
+
+                override fun onResponse(call: Call, response: Response) {
+                    // The response is received just after the coroutine has been cancelled. Release the connection.
+                    continuation.resume(response.toHTTPResponse()) { response.close() }
+                }
+            })
+        }
+    }
+
+    private fun newCall(request: HTTPRequest): Call {
+        val headersBuilder = Headers.Builder()
+        var contentType: String? = null
+        for (entry in request.headers) {
+            for (value in entry.value) {
+                headersBuilder.add(entry.key, value)
+                if (entry.key.equals("content-type", ignoreCase = true)) {
+                    contentType = value
+                }
+            }
+        }
+
+        val requestBody: RequestBody? = if (request.method == "GET" || request.method == "HEAD") {
+            null
+        } else {
+            // OkHttp requires a body for methods like POST.
+            val bytes = request.body?.use { it.readBytes() } ?: ByteArray(0)
+            bytes.toRequestBody(contentType?.toMediaTypeOrNull())
+        }
+
+        val okHttpRequest = Request.Builder()
+            .url(request.uri.toURL())
+            .headers(headersBuilder.build())
+            .method(request.method, requestBody)
+            .build()
+
+        val client = if (request.followRedirect == false) okHttpClientWithoutRedirect else okHttpClient
+        val call = client.newCall(okHttpRequest)
+        request.timeoutMillis?.let {
+            // The deadline of the whole call, like callTimeout of OkHttpClient.
+            call.timeout().timeout(it, TimeUnit.MILLISECONDS)
+        }
+        return call
+    }
+
+    private fun Response.toHTTPResponse(): HTTPResponse {
+        // Closing the byte stream closes the response and releases the connection.
+        return HTTPResponse(
+            statusCode = code,
+            headers = headers.toMultimap(),
+            body = body!!.byteStream()
+        )
+    }
+}
@@ -0,0 +1,89 @@
+package com.oursky.authgear.okhttp
+
+import com.oursky.authgear.Authgear
+import okhttp3.HttpUrl
+import okhttp3.Request
+import okhttp3.Response
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentHashMap
+
+// Shared by AuthgearInterceptor and AuthgearAuthenticator of the same Authgear instance.
+// The request retried by an Authenticator does not pass through application interceptors again,
+// so both of them have to be able to authorize a request.
+internal class RequestAuthorization private constructor() {
+    companion object {
+        // Keyed weakly, so that an instance goes away with its Authgear.
+        // The value must not refer to the Authgear, or it would never go away.
+        private val instances = WeakHashMap<Authgear, RequestAuthorization>()
+
+        fun of(authgear: Authgear): RequestAuthorization {
+            return synchronized(instances) {
+                instances.getOrPut(authgear) { RequestAuthorization() }
+            }
+        }
+
+        fun parseAccessToken(authorization: String?): String? {
+            if (authorization == null) {
+                return null
+            }
+            val parts = authorization.split(" ", limit = 2)
+            if (parts.size != 2 || parts[1].isEmpty()) {
+                return null
+            }
+            return parts[1]
+        }
+
+        // Whether the server rejected the request for a missing or stale nonce, and gave a new one.
+        fun isDPoPNonceError(response: Response): Boolean {
+            if (response.code != 401 || response.header("DPoP-Nonce") == null) {
+                return false
+            }
+            return response.headers("WWW-Authenticate").any {
+                it.startsWith("DPoP", ignoreCase = true) && it.contains("use_dpop_nonce")
+            }
+        }
+
+        private fun origin(url: HttpUrl): String {
+            return "${url.scheme}://${url.host}:${url.port}"
+        }
+
+        private fun htu(url: HttpUrl): String {
+            return url.newBuilder().query(null).fragment(null).build().toString()
+        }
+    }
+
+    // The latest DPoP-Nonce given by each origin to this Authgear instance.
+    // https://datatracker.ietf.org/doc/html/rfc9449#section-8
+    private val dpopNonces = ConcurrentHashMap<String, String>()
+
+    fun authorize(
+        authgear: Authgear,
+        request: Request,
+        accessToken: String?,
+        isDPoPEnabled: Boolean
+    ): Request {
+        val builder = request.newBuilder()
+        if (isDPoPEnabled && accessToken != null) {
+            val proof = authgear.generateDPoPProof(
+                method = request.method,
+                uri = htu(request.url),
+                accessToken = accessToken,
+                nonce = dpopNonces[origin(request.url)]
+            )
+            if (proof != null) {
+                return builder
+                    .header("authorization", "DPoP $accessToken")
+                    .header("DPoP", proof)
+                    .build()
+            }
+        }
+        return builder
+            .header("authorization", "bearer ${accessToken ?: ""}")
+            .build()
+    }
+
+    fun rememberDPoPNonce(response: Response) {
+        val nonce = response.header("DPoP-Nonce") ?: return
+        dpopNonces[origin(response.request.url)] = nonce
+    }
+}
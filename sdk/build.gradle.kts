@@ -51,6 +51,8 @@ dependencies {
     // https://developer.android.com/studio/write/java8-support#library-desugaring
     coreLibraryDesugaring("com.android.tools:desugar_jdk_libs:2.0.3")
     implementation("org.jetbrains.kotlinx:kotlinx-serialization-json:1.6.0")
+    // The public API exposes StateFlow and CoroutineDispatcher.
+    api("org.jetbrains.kotlinx:kotlinx-coroutines-android:1.7.3")
     implementation("androidx.core:core-ktx:1.12.0")
     implementation("androidx.appcompat:appcompat:1.4.0")
     // NOTE(backup): Please search NOTE(backup) before you update security-crypto or tink-android.
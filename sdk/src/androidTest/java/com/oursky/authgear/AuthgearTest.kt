@@ -36,4 +36,19 @@ class AuthgearTest {
             testOidcTokenRequest
         )
     }
+
+    @Test
+    fun convertECDSASignatureFromDERToJOSE() {
+        // r has a leading zero byte because its first bit is set, s is shorter than 32 bytes.
+        val r = ByteArray(32) { 0x80.toByte() }
+        val s = ByteArray(31) { 0x01 }
+        val der = byteArrayOf(0x30, (2 + 33 + 2 + 31).toByte()) +
+            byteArrayOf(0x02, 33, 0x00) + r +
+            byteArrayOf(0x02, 31) + s
+        val jose = ecdsaDERToJOSE(der, 64)
+        assertEquals(64, jose.size)
+        assertEquals(r.toList(), jose.copyOfRange(0, 32).toList())
+        assertEquals(0.toByte(), jose[32])
+        assertEquals(s.toList(), jose.copyOfRange(33, 64).toList())
+    }
 }
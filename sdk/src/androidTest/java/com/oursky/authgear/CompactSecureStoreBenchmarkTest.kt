@@ -0,0 +1,80 @@
+package com.oursky.authgear
+
+import android.content.Context
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Compares CompactTokenStorage against PersistentTokenStorage.
+ * The results are written to logcat with the tag Authgear.
+ */
+@RunWith(AndroidJUnit4::class)
+class CompactSecureStoreBenchmarkTest {
+    companion object {
+        private const val LOGTAG = "Authgear"
+        private const val NAMESPACE = "benchmark"
+        private const val WARM_UP = 5
+        private const val ITERATIONS = 50
+    }
+
+    private val context: Context
+        get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Test
+    fun roundTrip() {
+        val storage = CompactTokenStorage(context)
+        storage.setRefreshToken(NAMESPACE, "a")
+        storage.setRefreshToken(NAMESPACE, "b")
+        CompactSecureStore.getInstance(context).clearMemoryCache()
+        assertEquals("b", storage.getRefreshToken(NAMESPACE))
+        storage.deleteRefreshToken(NAMESPACE)
+        CompactSecureStore.getInstance(context).clearMemoryCache()
+        assertNull(storage.getRefreshToken(NAMESPACE))
+    }
+
+    @Test
+    fun compareWithPersistentTokenStorage() {
+        val persistent = PersistentTokenStorage(context)
+        val compact = CompactTokenStorage(context)
+        val token = "x".repeat(64)
+
+        report("write", "persistent", measure { persistent.setRefreshToken(NAMESPACE, token) })
+        report("write", "compact", measure { compact.setRefreshToken(NAMESPACE, token) })
+
+        report("read", "persistent", measure { persistent.getRefreshToken(NAMESPACE) })
+        report("read", "compact", measure { compact.getRefreshToken(NAMESPACE) })
+
+        report("cold-open", "persistent", measure {
+            EncryptedSharedPreferencesCache.invalidate(NAMESPACE)
+            persistent.getRefreshToken(NAMESPACE)
+        })
+        report("cold-open", "compact", measure {
+            CompactSecureStore.getInstance(context).clearMemoryCache()
+            compact.getRefreshToken(NAMESPACE)
+        })
+
+        persistent.deleteRefreshToken(NAMESPACE)
+        compact.deleteRefreshToken(NAMESPACE)
+    }
+
+    // Return the median duration in microseconds.
+    private fun measure(block: () -> Unit): Long {
+        repeat(WARM_UP) { block() }
+        val durations = LongArray(ITERATIONS) {
+            val startedAt = System.nanoTime()
+            block()
+            (System.nanoTime() - startedAt) / 1000
+        }
+        durations.sort()
+        return durations[ITERATIONS / 2]
+    }
+
+    private fun report(operation: String, storage: String, medianMicros: Long) {
+        Log.i(LOGTAG, "benchmark $operation $storage: median $medianMicros us")
+    }
+}
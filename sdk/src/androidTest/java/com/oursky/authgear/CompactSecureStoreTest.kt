@@ -0,0 +1,54 @@
+package com.oursky.authgear
+
+import android.content.Context
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.RandomAccessFile
+
+@RunWith(AndroidJUnit4::class)
+class CompactSecureStoreTest {
+    private val context: Context
+        get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    private val file: File
+        get() = File(context.noBackupFilesDir, "com.authgear.compact_store")
+
+    @Before
+    fun setup() {
+        file.delete()
+        CompactSecureStore.getInstance(context).clearMemoryCache()
+    }
+
+    @Test
+    fun recoverFromTruncatedRecord() {
+        val store = CompactSecureStore.getInstance(context)
+        store.put("a", "1")
+        store.put("b", "2")
+
+        // Simulate a crash in the middle of appending the record of b.
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 5) }
+        store.clearMemoryCache()
+
+        store.put("c", "3")
+        store.clearMemoryCache()
+
+        assertEquals("1", store.get("a"))
+        assertNull(store.get("b"))
+        assertEquals("3", store.get("c"))
+    }
+
+    @Test
+    fun storeValueLargerThan64KB() {
+        val store = CompactSecureStore.getInstance(context)
+        val value = "é".repeat(70_000)
+        store.put("large", value)
+        store.clearMemoryCache()
+        assertEquals(value, store.get("large"))
+    }
+}
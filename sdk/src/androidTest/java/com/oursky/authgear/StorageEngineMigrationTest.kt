@@ -0,0 +1,73 @@
+package com.oursky.authgear
+
+import android.content.Context
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class StorageEngineMigrationTest {
+    private val context: Context
+        get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    private val namespace = "storage_engine_migration_test"
+
+    private fun makeMigration(storageEngine: StorageEngine): StorageEngineMigration {
+        return StorageEngineMigration(
+            context = context,
+            namespace = namespace,
+            storageEngine = storageEngine,
+            tokenStorage = StorageEngineMigration.makeTokenStorage(context, storageEngine),
+            isTokenStorageDefault = true,
+            sharedStorage = StorageEngineMigration.makeInterAppSharedStorage(context, storageEngine),
+            containerStorage = StorageEngineMigration.makeContainerStorage(context, storageEngine)
+        )
+    }
+
+    @Before
+    fun setup() {
+        context.getSharedPreferences("com.authgear.storage_engine", Context.MODE_PRIVATE)
+            .edit().remove(namespace).commit()
+        for (engine in StorageEngine.values()) {
+            StorageEngineMigration.makeTokenStorage(context, engine).deleteRefreshToken(namespace)
+            StorageEngineMigration.makeInterAppSharedStorage(context, engine).onLogout(namespace)
+            StorageEngineMigration.makeContainerStorage(context, engine).deleteAnonymousKeyId(namespace)
+        }
+    }
+
+    @Test
+    fun moveSessionToCompact() {
+        makeMigration(StorageEngine.ENCRYPTED_SHARED_PREFERENCES).run()
+        val tokenStorage = PersistentTokenStorage(context)
+        val sharedStorage = PersistentInterAppSharedStorage(context)
+        tokenStorage.setRefreshToken(namespace, "refresh-token")
+        sharedStorage.setIDTokenAndDeviceSecret(namespace, "id-token", "device-secret")
+        sharedStorage.setDPoPKeyId(namespace, "dpop-key-id")
+        PersistentContainerStorage(context).setAnonymousKeyId(namespace, "anonymous-key-id")
+
+        makeMigration(StorageEngine.COMPACT).run()
+
+        val compactSharedStorage = CompactInterAppSharedStorage(context)
+        assertEquals("refresh-token", CompactTokenStorage(context).getRefreshToken(namespace))
+        assertEquals("id-token", compactSharedStorage.getIDToken(namespace))
+        assertEquals("device-secret", compactSharedStorage.getDeviceSecret(namespace))
+        assertEquals("dpop-key-id", compactSharedStorage.getDPoPKeyId(namespace))
+        assertEquals("anonymous-key-id", CompactContainerStorage(context).getAnonymousKeyId(namespace))
+        assertNull(tokenStorage.getRefreshToken(namespace))
+        assertNull(sharedStorage.getDeviceSecret(namespace))
+    }
+
+    @Test
+    fun keepSessionWhenEngineIsUnchanged() {
+        makeMigration(StorageEngine.COMPACT).run()
+        CompactTokenStorage(context).setRefreshToken(namespace, "refresh-token")
+
+        makeMigration(StorageEngine.COMPACT).run()
+
+        assertEquals("refresh-token", CompactTokenStorage(context).getRefreshToken(namespace))
+    }
+}
@@ -0,0 +1,101 @@
+package com.oursky.authgear
+
+import android.app.Activity
+import android.app.Application
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.time.Instant
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+@RunWith(AndroidJUnit4::class)
+class TokenRefreshSchedulerTest {
+    private val application: Application
+        get() = InstrumentationRegistry.getInstrumentation().targetContext.applicationContext as Application
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val options = ProactiveRefreshOptions(isEnabled = true, leadTimeSeconds = 30)
+    private val expireAt = AtomicReference<Instant?>(null)
+    private val refreshCount = AtomicInteger(0)
+    private val isRefreshed = CompletableDeferred<Unit>()
+    private var scheduler: TokenRefreshScheduler? = null
+
+    @After
+    fun tearDown() {
+        scheduler?.stop()
+        scope.cancel()
+    }
+
+    @Test
+    fun refreshShortlyBeforeExpiry() = runBlocking<Unit> {
+        expireAt.set(Instant.now().plusSeconds(options.leadTimeSeconds + 2))
+        startInForeground {
+            // The refreshed access token does not expire soon.
+            expireAt.set(Instant.now().plusSeconds(3600))
+        }
+
+        assertNull(withTimeoutOrNull(1_000) { isRefreshed.await() })
+        withTimeout(5_000) { isRefreshed.await() }
+        delay(300)
+        assertEquals(1, refreshCount.get())
+    }
+
+    @Test
+    fun doNotRefreshWithoutSession() = runBlocking<Unit> {
+        startInForeground {}
+        scheduler!!.onSessionChanged()
+
+        delay(500)
+        assertEquals(0, refreshCount.get())
+    }
+
+    @Test
+    fun signalsDoNotRetryFailedRefreshImmediately() = runBlocking<Unit> {
+        expireAt.set(Instant.now())
+        startInForeground {
+            throw AuthgearException("failed")
+        }
+        withTimeout(5_000) { isRefreshed.await() }
+
+        // The session changes, but the refresh keeps failing. It waits for the backoff.
+        repeat(5) {
+            scheduler!!.onSessionChanged()
+            delay(100)
+        }
+        assertEquals(1, refreshCount.get())
+    }
+
+    private fun startInForeground(onRefresh: () -> Unit) {
+        val scheduler = TokenRefreshScheduler(
+            application,
+            options,
+            scope,
+            getExpireAt = { expireAt.get() },
+            refresh = {
+                refreshCount.incrementAndGet()
+                isRefreshed.complete(Unit)
+                onRefresh()
+            }
+        )
+        this.scheduler = scheduler
+        scheduler.start()
+        // After start() has registered the callbacks on the main thread.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync {
+            scheduler.onActivityStarted(Activity())
+        }
+    }
+}
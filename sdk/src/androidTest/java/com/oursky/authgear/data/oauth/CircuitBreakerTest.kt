@@ -0,0 +1,93 @@
+package com.oursky.authgear.data.oauth
+
+import com.oursky.authgear.CircuitBreakerOpenException
+import com.oursky.authgear.CircuitBreakerState
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Test
+
+class CircuitBreakerTest {
+    @Test
+    fun openAfterConsecutiveFailures() {
+        val circuitBreaker = CircuitBreaker(failureThreshold = 2, openMillis = 60_000)
+        circuitBreaker.acquire()
+        circuitBreaker.onFailure()
+        assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.state())
+        circuitBreaker.acquire()
+        circuitBreaker.onFailure()
+        assertEquals(CircuitBreakerState.OPEN, circuitBreaker.state())
+        assertEquals(1L, circuitBreaker.openedCount())
+        assertFailFast(circuitBreaker)
+    }
+
+    @Test
+    fun successResetsFailures() {
+        val circuitBreaker = CircuitBreaker(failureThreshold = 2, openMillis = 60_000)
+        circuitBreaker.onFailure()
+        circuitBreaker.onSuccess()
+        circuitBreaker.onFailure()
+        assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.state())
+    }
+
+    @Test
+    fun letOneProbeThroughAfterOpenMillis() {
+        val circuitBreaker = CircuitBreaker(failureThreshold = 1, openMillis = 0)
+        circuitBreaker.onFailure()
+        assertEquals(CircuitBreakerState.OPEN, circuitBreaker.state())
+
+        circuitBreaker.acquire()
+        assertEquals(CircuitBreakerState.HALF_OPEN, circuitBreaker.state())
+        // Only one probe at a time.
+        assertFailFast(circuitBreaker)
+
+        circuitBreaker.onSuccess()
+        assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.state())
+        circuitBreaker.acquire()
+    }
+
+    @Test
+    fun failedProbeOpensAgain() {
+        val circuitBreaker = CircuitBreaker(failureThreshold = 3, openMillis = 0)
+        repeat(3) { circuitBreaker.onFailure() }
+        circuitBreaker.acquire()
+        // A single failure of the probe is enough.
+        circuitBreaker.onFailure()
+        assertEquals(CircuitBreakerState.OPEN, circuitBreaker.state())
+        assertEquals(2L, circuitBreaker.openedCount())
+    }
+
+    @Test
+    fun abortedProbeLetsTheNextCallProbe() {
+        val circuitBreaker = CircuitBreaker(failureThreshold = 1, openMillis = 100)
+        circuitBreaker.onFailure()
+        assertFailFast(circuitBreaker)
+        Thread.sleep(150)
+
+        circuitBreaker.acquire()
+        circuitBreaker.onAborted()
+        assertEquals(CircuitBreakerState.OPEN, circuitBreaker.state())
+        // The next call does not wait for another openMillis.
+        circuitBreaker.acquire()
+        assertEquals(CircuitBreakerState.HALF_OPEN, circuitBreaker.state())
+        assertEquals(1L, circuitBreaker.openedCount())
+    }
+
+    @Test
+    fun abortedCallDoesNotChangeClosedState() {
+        val circuitBreaker = CircuitBreaker(failureThreshold = 2, openMillis = 60_000)
+        circuitBreaker.onFailure()
+        circuitBreaker.onAborted()
+        assertEquals(CircuitBreakerState.CLOSED, circuitBreaker.state())
+        circuitBreaker.onFailure()
+        assertEquals(CircuitBreakerState.OPEN, circuitBreaker.state())
+    }
+
+    private fun assertFailFast(circuitBreaker: CircuitBreaker) {
+        try {
+            circuitBreaker.acquire()
+            fail("expected CircuitBreakerOpenException")
+        } catch (e: CircuitBreakerOpenException) {
+            // Expected.
+        }
+    }
+}
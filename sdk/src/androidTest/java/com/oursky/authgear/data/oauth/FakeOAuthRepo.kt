@@ -0,0 +1,64 @@
+package com.oursky.authgear.data.oauth
+
+import com.oursky.authgear.UserInfo
+import com.oursky.authgear.oauth.AppSessionTokenResponse
+import com.oursky.authgear.oauth.ChallengeResponse
+import com.oursky.authgear.oauth.OidcConfiguration
+import com.oursky.authgear.oauth.OidcTokenRequest
+import com.oursky.authgear.oauth.OidcTokenResponse
+import kotlinx.serialization.json.JsonObject
+
+/**
+ * An [OAuthRepo] that fails every request. Tests override the requests they need.
+ */
+internal open class FakeOAuthRepo : OAuthRepo {
+    companion object {
+        fun userInfo(sub: String): UserInfo {
+            return UserInfo(
+                sub = sub,
+                isVerified = false,
+                isAnonymous = false,
+                canReauthenticate = false,
+                customAttributes = JsonObject(emptyMap())
+            )
+        }
+    }
+
+    override var endpoint: String? = "https://auth.example.com"
+
+    override suspend fun getOidcConfiguration(): OidcConfiguration {
+        throw UnsupportedOperationException()
+    }
+
+    override suspend fun warmUpConnection() {
+        throw UnsupportedOperationException()
+    }
+
+    override suspend fun oidcTokenRequest(request: OidcTokenRequest): OidcTokenResponse {
+        throw UnsupportedOperationException()
+    }
+
+    override suspend fun biometricSetupRequest(accessToken: String, clientId: String, jwt: String) {
+        throw UnsupportedOperationException()
+    }
+
+    override suspend fun oidcRevocationRequest(refreshToken: String) {
+        throw UnsupportedOperationException()
+    }
+
+    override suspend fun oidcUserInfoRequest(accessToken: String): UserInfo {
+        throw UnsupportedOperationException()
+    }
+
+    override suspend fun oauthChallenge(purpose: String): ChallengeResponse {
+        throw UnsupportedOperationException()
+    }
+
+    override suspend fun oauthAppSessionToken(refreshToken: String): AppSessionTokenResponse {
+        throw UnsupportedOperationException()
+    }
+
+    override suspend fun wechatAuthCallback(code: String, state: String) {
+        throw UnsupportedOperationException()
+    }
+}
@@ -0,0 +1,221 @@
+package com.oursky.authgear.data.oauth
+
+import com.oursky.authgear.CircuitBreakerOpenException
+import com.oursky.authgear.CircuitBreakerState
+import com.oursky.authgear.GrantType
+import com.oursky.authgear.OAuthException
+import com.oursky.authgear.RetryOptions
+import com.oursky.authgear.ServerException
+import com.oursky.authgear.UserInfo
+import com.oursky.authgear.net.HTTPStatusException
+import com.oursky.authgear.oauth.ChallengeResponse
+import com.oursky.authgear.oauth.OidcTokenRequest
+import com.oursky.authgear.oauth.OidcTokenResponse
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.InterruptedIOException
+import java.net.ConnectException
+import java.net.SocketTimeoutException
+import java.net.UnknownHostException
+import java.util.concurrent.atomic.AtomicInteger
+
+class OAuthRepoRetryTest {
+    private val refreshTokenRequest = OidcTokenRequest(
+        grantType = GrantType.REFRESH_TOKEN,
+        clientId = "client",
+        refreshToken = "refresh_token"
+    )
+
+    private val options = RetryOptions(
+        isEnabled = true,
+        maxAttempts = 3,
+        initialBackoffMillis = 1,
+        maxBackoffMillis = 1,
+        circuitBreakerFailureThreshold = 2,
+        circuitBreakerOpenMillis = 60_000
+    )
+
+    // Fails with the given exceptions in order, then succeeds.
+    private class FailingRepo(private vararg val failures: Exception) : FakeOAuthRepo() {
+        val callCount = AtomicInteger(0)
+
+        override suspend fun oidcUserInfoRequest(accessToken: String): UserInfo {
+            val i = callCount.getAndIncrement()
+            if (i < failures.size) {
+                throw failures[i]
+            }
+            return userInfo("user")
+        }
+
+        override suspend fun oidcTokenRequest(request: OidcTokenRequest): OidcTokenResponse {
+            val i = callCount.getAndIncrement()
+            if (i < failures.size) {
+                throw failures[i]
+            }
+            return OidcTokenResponse(accessToken = "access_token")
+        }
+
+        override suspend fun oauthChallenge(purpose: String): ChallengeResponse {
+            callCount.incrementAndGet()
+            throw failures[0]
+        }
+    }
+
+    @Test
+    fun classifyFailures() {
+        val retry = OAuthRepoRetry(FakeOAuthRepo(), options)
+
+        assertTrue(retry.isServerFailure(SocketTimeoutException()))
+        assertTrue(retry.isServerFailure(HTTPStatusException(503, "service unavailable")))
+        assertTrue(retry.isServerFailure(ServerException("ServiceUnavailable", "", "")))
+        assertFalse(retry.isServerFailure(HTTPStatusException(404, "not found")))
+        // The device is offline, or the call was cancelled.
+        assertFalse(retry.isServerFailure(UnknownHostException()))
+        assertFalse(retry.isServerFailure(ConnectException()))
+        assertFalse(retry.isServerFailure(InterruptedIOException()))
+
+        assertTrue(retry.isTransientFailure(SocketTimeoutException()))
+        assertTrue(retry.isTransientFailure(UnknownHostException()))
+        assertTrue(retry.isTransientFailure(ConnectException()))
+        assertFalse(retry.isTransientFailure(InterruptedIOException()))
+        assertFalse(retry.isTransientFailure(OAuthException("invalid_grant", null, null, null)))
+
+        assertTrue(retry.isServerAnswer(OAuthException("invalid_grant", null, null, null)))
+        assertTrue(retry.isServerAnswer(HTTPStatusException(404, "not found")))
+        assertFalse(retry.isServerAnswer(UnknownHostException()))
+    }
+
+    @Test
+    fun classifyUnprocessedFailures() {
+        val retry = OAuthRepoRetry(FakeOAuthRepo(), options)
+
+        assertTrue(retry.isUnprocessedFailure(UnknownHostException()))
+        assertTrue(retry.isUnprocessedFailure(ConnectException()))
+        assertTrue(retry.isUnprocessedFailure(HTTPStatusException(502, "bad gateway")))
+        assertTrue(retry.isUnprocessedFailure(HTTPStatusException(504, "gateway timeout")))
+        // The server may have processed the request.
+        assertFalse(retry.isUnprocessedFailure(SocketTimeoutException()))
+        assertFalse(retry.isUnprocessedFailure(HTTPStatusException(500, "internal server error")))
+        assertFalse(retry.isUnprocessedFailure(InterruptedIOException()))
+    }
+
+    @Test
+    fun retryRefreshTokenGrantNotSent() = runBlocking<Unit> {
+        val repo = FailingRepo(ConnectException())
+        val retry = OAuthRepoRetry(repo, options)
+
+        assertEquals("access_token", retry.oidcTokenRequest(refreshTokenRequest).accessToken)
+        assertEquals(2, repo.callCount.get())
+    }
+
+    @Test
+    fun doNotRetryRefreshTokenGrantAfterTimeout() = runBlocking<Unit> {
+        val repo = FailingRepo(SocketTimeoutException())
+        val retry = OAuthRepoRetry(repo, options)
+
+        try {
+            retry.oidcTokenRequest(refreshTokenRequest)
+            fail("expected SocketTimeoutException")
+        } catch (e: SocketTimeoutException) {
+            // The refresh token may have been rotated already.
+        }
+        assertEquals(1, repo.callCount.get())
+    }
+
+    @Test
+    fun backoffIsBounded() {
+        val retry = OAuthRepoRetry(
+            FakeOAuthRepo(),
+            options.copy(initialBackoffMillis = 100, maxBackoffMillis = 1_000)
+        )
+        repeat(100) {
+            assertInRange(retry.backoffMillis(1), 50, 100)
+            assertInRange(retry.backoffMillis(2), 100, 200)
+            assertInRange(retry.backoffMillis(3), 200, 400)
+            // Capped by maxBackoffMillis, even when the shift would overflow.
+            assertInRange(retry.backoffMillis(10), 500, 1_000)
+            assertInRange(retry.backoffMillis(100), 500, 1_000)
+        }
+    }
+
+    @Test
+    fun retryServerFailure() = runBlocking<Unit> {
+        val repo = FailingRepo(HTTPStatusException(502, "bad gateway"))
+        val retry = OAuthRepoRetry(repo, options)
+
+        assertEquals("user", retry.oidcUserInfoRequest("token").sub)
+        assertEquals(2, repo.callCount.get())
+        assertEquals(1L, retry.stats.retryCount)
+        assertEquals(CircuitBreakerState.CLOSED, retry.stats.circuitBreakerState)
+    }
+
+    @Test
+    fun failFastAfterConsecutiveServerFailures() = runBlocking<Unit> {
+        val repo = FailingRepo(*Array(3) { SocketTimeoutException() })
+        val retry = OAuthRepoRetry(repo, options)
+
+        try {
+            retry.oidcUserInfoRequest("token")
+            fail("expected CircuitBreakerOpenException")
+        } catch (e: CircuitBreakerOpenException) {
+            // The third attempt is not sent.
+        }
+        assertEquals(2, repo.callCount.get())
+        assertEquals(1L, retry.stats.failFastCount)
+        assertEquals(CircuitBreakerState.OPEN, retry.stats.circuitBreakerState)
+    }
+
+    @Test
+    fun offlineDoesNotOpenCircuitBreaker() = runBlocking<Unit> {
+        val repo = FailingRepo(*Array(9) { UnknownHostException() })
+        val retry = OAuthRepoRetry(repo, options)
+
+        repeat(3) {
+            try {
+                retry.oidcUserInfoRequest("token")
+                fail("expected UnknownHostException")
+            } catch (e: UnknownHostException) {
+                // Retried up to maxAttempts.
+            }
+        }
+        assertEquals(9, repo.callCount.get())
+        assertEquals(CircuitBreakerState.CLOSED, retry.stats.circuitBreakerState)
+        assertEquals(0L, retry.stats.circuitOpenedCount)
+    }
+
+    @Test
+    fun doNotRetryCancelledCall() = runBlocking<Unit> {
+        val repo = FailingRepo(InterruptedIOException("call cancelled"))
+        val retry = OAuthRepoRetry(repo, options)
+
+        try {
+            retry.oidcUserInfoRequest("token")
+            fail("expected InterruptedIOException")
+        } catch (e: InterruptedIOException) {
+            // Expected.
+        }
+        assertEquals(1, repo.callCount.get())
+    }
+
+    @Test
+    fun doNotRetryUnsafeRequest() = runBlocking<Unit> {
+        val repo = FailingRepo(HTTPStatusException(503, "service unavailable"))
+        val retry = OAuthRepoRetry(repo, options)
+
+        try {
+            retry.oauthChallenge("anonymous_request")
+            fail("expected HTTPStatusException")
+        } catch (e: HTTPStatusException) {
+            // A challenge is consumed by the server, it is not sent again.
+        }
+        assertEquals(1, repo.callCount.get())
+    }
+
+    private fun assertInRange(value: Long, min: Long, max: Long) {
+        assertTrue("$value is not in [$min, $max]", value in min..max)
+    }
+}
@@ -0,0 +1,113 @@
+package com.oursky.authgear.data.oauth
+
+import com.oursky.authgear.UserInfo
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+class OAuthRepoSingleFlightTest {
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+    // Each request waits for the gate to open.
+    private class GatedRepo : FakeOAuthRepo() {
+        val callCount = AtomicInteger(0)
+        val isCalled = CompletableDeferred<Unit>()
+        val gate = CompletableDeferred<Unit>()
+        var failure: Exception? = null
+
+        override suspend fun oidcUserInfoRequest(accessToken: String): UserInfo {
+            callCount.incrementAndGet()
+            isCalled.complete(Unit)
+            gate.await()
+            failure?.let { throw it }
+            return userInfo(accessToken)
+        }
+    }
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+    }
+
+    @Test
+    fun coalesceIdenticalRequests() = runBlocking<Unit> {
+        val repo = GatedRepo()
+        val singleFlight = OAuthRepoSingleFlight(repo, scope)
+
+        val first = async(Dispatchers.Default) { singleFlight.oidcUserInfoRequest("token") }
+        repo.isCalled.await()
+        val others = List(2) {
+            async(start = CoroutineStart.UNDISPATCHED) { singleFlight.oidcUserInfoRequest("token") }
+        }
+        assertEquals(2L, singleFlight.stats.coalescedCount)
+        assertEquals(1, singleFlight.stats.inFlightCount)
+        repo.gate.complete(Unit)
+
+        assertEquals("token", first.await().sub)
+        others.forEach { assertEquals("token", it.await().sub) }
+        assertEquals(1, repo.callCount.get())
+        assertEquals(0, singleFlight.stats.inFlightCount)
+    }
+
+    @Test
+    fun doNotCoalesceDifferentCredentials() = runBlocking<Unit> {
+        val repo = GatedRepo()
+        repo.gate.complete(Unit)
+        val singleFlight = OAuthRepoSingleFlight(repo, scope)
+
+        assertEquals("a", singleFlight.oidcUserInfoRequest("a").sub)
+        assertEquals("b", singleFlight.oidcUserInfoRequest("b").sub)
+        assertEquals(2, repo.callCount.get())
+        assertEquals(0L, singleFlight.stats.coalescedCount)
+    }
+
+    @Test
+    fun shareTheException() = runBlocking<Unit> {
+        val repo = GatedRepo()
+        repo.failure = IllegalStateException("failed")
+        val singleFlight = OAuthRepoSingleFlight(repo, scope)
+
+        val first = async(Dispatchers.Default) { runCatching { singleFlight.oidcUserInfoRequest("token") } }
+        repo.isCalled.await()
+        val second = async(start = CoroutineStart.UNDISPATCHED) {
+            runCatching { singleFlight.oidcUserInfoRequest("token") }
+        }
+        repo.gate.complete(Unit)
+
+        assertEquals("failed", first.await().exceptionOrNull()?.message)
+        assertEquals("failed", second.await().exceptionOrNull()?.message)
+        assertEquals(1, repo.callCount.get())
+    }
+
+    @Test
+    fun cancelledCallerDoesNotAbortTheOthers() = runBlocking<Unit> {
+        val repo = GatedRepo()
+        val singleFlight = OAuthRepoSingleFlight(repo, scope)
+
+        val first = async(Dispatchers.Default) { singleFlight.oidcUserInfoRequest("token") }
+        repo.isCalled.await()
+        val second = async(start = CoroutineStart.UNDISPATCHED) { singleFlight.oidcUserInfoRequest("token") }
+        first.cancel()
+        repo.gate.complete(Unit)
+
+        assertEquals("token", second.await().sub)
+        try {
+            first.await()
+            fail("expected the first caller to be cancelled")
+        } catch (e: CancellationException) {
+            // Expected.
+        }
+        assertEquals(1, repo.callCount.get())
+    }
+}
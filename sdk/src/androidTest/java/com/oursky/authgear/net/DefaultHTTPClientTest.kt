@@ -0,0 +1,98 @@
+package com.oursky.authgear.net
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.net.URI
+import java.net.URL
+
+class DefaultHTTPClientTest {
+    // Like the custom client of the sample app.
+    private class CustomHTTPClient : DefaultHTTPClient() {
+        var sentRequest: HTTPRequest? = null
+
+        override fun send(request: HTTPRequest): HTTPResponse {
+            request.headers["X-Custom-Header"] = mutableListOf("42")
+            sentRequest = request
+            return HTTPResponse(200, emptyMap(), ByteArrayInputStream(ByteArray(0)))
+        }
+    }
+
+    @Test
+    fun executeGoesThroughOverriddenSend() = runBlocking<Unit> {
+        val client = CustomHTTPClient()
+        val request = HTTPRequest(
+            method = "GET",
+            headers = mutableMapOf(),
+            uri = URI("https://auth.example.com/.well-known/openid-configuration")
+        )
+
+        val response = client.asSuspendHTTPClient().execute(request)
+
+        assertEquals(200, response.statusCode)
+        assertSame(request, client.sentRequest)
+        assertEquals(listOf("42"), request.headers["X-Custom-Header"])
+    }
+
+    private val headers = mapOf(
+        "Authorization" to listOf("DPoP token"),
+        "DPoP" to listOf("proof"),
+        "Content-Type" to listOf("application/x-www-form-urlencoded"),
+        "Accept" to listOf("application/json")
+    )
+
+    @Test
+    fun keepCredentialsOnSameHost() {
+        val redirect = redirectRequestOf(URL("https://auth.example.com/a"), "GET", headers, 302, "/b")!!
+
+        assertEquals(URL("https://auth.example.com/b"), redirect.url)
+        assertEquals(listOf("DPoP token"), redirect.headers["Authorization"])
+        assertEquals(listOf("proof"), redirect.headers["DPoP"])
+    }
+
+    @Test
+    fun stripCredentialsOnHostChange() {
+        val redirect = redirectRequestOf(
+            URL("https://auth.example.com/a"), "GET", headers, 302, "https://other.example.com/b"
+        )!!
+
+        assertNull(redirect.headers["Authorization"])
+        assertNull(redirect.headers["DPoP"])
+        assertEquals(listOf("application/json"), redirect.headers["Accept"])
+    }
+
+    @Test
+    fun rewritePostToGet() {
+        for (statusCode in listOf(301, 302, 303)) {
+            val redirect = redirectRequestOf(URL("https://auth.example.com/a"), "POST", headers, statusCode, "/b")!!
+
+            assertEquals("GET", redirect.method)
+            assertNull(redirect.headers["Content-Type"])
+        }
+    }
+
+    @Test
+    fun keepMethodOn307And308() {
+        for (statusCode in listOf(307, 308)) {
+            val redirect = redirectRequestOf(URL("https://auth.example.com/a"), "GET", headers, statusCode, "/b")!!
+
+            assertEquals("GET", redirect.method)
+            assertEquals(listOf("application/x-www-form-urlencoded"), redirect.headers["Content-Type"])
+            // The body cannot be sent again.
+            assertNull(redirectRequestOf(URL("https://auth.example.com/a"), "POST", headers, statusCode, "/b"))
+        }
+    }
+
+    @Test
+    fun doNotFollowOtherResponses() {
+        val url = URL("https://auth.example.com/a")
+
+        assertNull(redirectRequestOf(url, "GET", headers, 200, "/b"))
+        assertNull(redirectRequestOf(url, "GET", headers, 304, "/b"))
+        // Like HttpURLConnection, a redirect to another protocol is not followed.
+        assertNull(redirectRequestOf(url, "GET", headers, 302, "http://auth.example.com/b"))
+    }
+}
@@ -15,10 +15,15 @@ import com.oursky.authgear.app2app.App2AppOptions
 import com.oursky.authgear.data.assetlink.AssetLinkRepoHttp
 import com.oursky.authgear.data.key.KeyRepoKeystore
 import com.oursky.authgear.data.oauth.OAuthRepoHttp
+import com.oursky.authgear.data.oauth.OAuthRepoRetry
+import com.oursky.authgear.data.oauth.OAuthRepoSingleFlight
+import com.oursky.authgear.data.oauth.OidcConfigurationCacheSharedPreferences
 import com.oursky.authgear.dpop.DefaultDPoPProvider
 import com.oursky.authgear.net.DefaultHTTPClient
 import com.oursky.authgear.net.HTTPClient
+import com.oursky.authgear.net.asSuspendHTTPClient
 import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.StateFlow
 import java.util.*
 
 class Authgear @JvmOverloads
@@ -26,32 +31,89 @@ constructor(
     application: Application,
     clientId: String,
     authgearEndpoint: String,
-    tokenStorage: TokenStorage = PersistentTokenStorage(application),
+    tokenStorage: TokenStorage? = null,
     uiImplementation: UIImplementation = CustomTabsUIImplementation(),
     httpClient: HTTPClient = DefaultHTTPClient(),
     isSsoEnabled: Boolean = false,
     preAuthenticatedURLEnabled: Boolean = false,
     name: String? = null,
-    app2AppOptions: App2AppOptions = App2AppOptions(isEnabled = false)
+    app2AppOptions: App2AppOptions = App2AppOptions(isEnabled = false),
+    isWarmUpEnabled: Boolean = false,
+    signingAlgorithm: SigningAlgorithm = SigningAlgorithm.RS256,
+    proactiveRefreshOptions: ProactiveRefreshOptions = ProactiveRefreshOptions(isEnabled = false),
+    storageEngine: StorageEngine = StorageEngine.ENCRYPTED_SHARED_PREFERENCES,
+    userInfoCacheOptions: UserInfoCacheOptions = UserInfoCacheOptions(isEnabled = false),
+    isAccessTokenPersistenceEnabled: Boolean = false,
+    dispatcher: CoroutineDispatcher = defaultDispatcher,
+    retryOptions: RetryOptions = RetryOptions(isEnabled = false)
 ) {
     companion object {
         @Suppress("unused")
         private val TAG = Authgear::class.java.simpleName
+
+        private const val DEFAULT_PARALLELISM = 4
+
+        /**
+         * The dispatcher used by default. It runs on the threads of [Dispatchers.IO],
+         * but the sdk never takes more than a few of them, and it does not count towards
+         * the limit of [Dispatchers.IO], so the sdk and the rest of the app do not starve each other.
+         * It is shared by all [Authgear] instances.
+         */
+        @OptIn(ExperimentalCoroutinesApi::class)
+        @JvmStatic
+        val defaultDispatcher: CoroutineDispatcher by lazy {
+            Dispatchers.IO.limitedParallelism(DEFAULT_PARALLELISM)
+        }
     }
 
+    // The blocking I/O of the sdk, including the suspend functions, runs on this dispatcher.
+    internal val dispatcher: CoroutineDispatcher = dispatcher
+
+    // A failed call must not cancel the others, so the job is a SupervisorJob.
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher)
+
+    private val oauthRepo: OAuthRepoSingleFlight
+
+    private val retryOAuthRepo: OAuthRepoRetry
+
     internal val core: AuthgearCore
 
     init {
         val name = name ?: "default"
-        val keyRepo = KeyRepoKeystore()
-        val sharedStorage = PersistentInterAppSharedStorage(application)
+        val keyRepo = KeyRepoKeystore(signingAlgorithm)
+        // Without a given token storage, the refresh token is kept by the storage engine too.
+        val isTokenStorageDefault = tokenStorage == null
+        val tokenStorage = tokenStorage ?: StorageEngineMigration.makeTokenStorage(application, storageEngine)
+        val sharedStorage = StorageEngineMigration.makeInterAppSharedStorage(application, storageEngine)
+        val containerStorage = StorageEngineMigration.makeContainerStorage(application, storageEngine)
+        val storageEngineMigration = StorageEngineMigration(
+            context = application,
+            namespace = name,
+            storageEngine = storageEngine,
+            tokenStorage = tokenStorage,
+            isTokenStorageDefault = isTokenStorageDefault,
+            sharedStorage = sharedStorage,
+            containerStorage = containerStorage
+        )
         val dpopProvider = DefaultDPoPProvider(
             namespace = name,
             keyRepo = keyRepo,
             sharedStorage = sharedStorage,
         )
-        val oauthRepo = OAuthRepoHttp(httpClient = httpClient, dPoPProvider = dpopProvider)
-        val assetLinkRepo = AssetLinkRepoHttp(httpClient)
+        val suspendHTTPClient = httpClient.asSuspendHTTPClient(dispatcher)
+        val retryOAuthRepo = OAuthRepoRetry(
+            OAuthRepoHttp(
+                httpClient = suspendHTTPClient,
+                dPoPProvider = dpopProvider,
+                scope = scope,
+                oidcConfigurationCache = OidcConfigurationCacheSharedPreferences(application)
+            ),
+            retryOptions
+        )
+        this.retryOAuthRepo = retryOAuthRepo
+        val oauthRepo = OAuthRepoSingleFlight(retryOAuthRepo, scope)
+        this.oauthRepo = oauthRepo
+        val assetLinkRepo = AssetLinkRepoHttp(suspendHTTPClient)
         this.core = AuthgearCore(
             this,
             application,
@@ -63,17 +125,21 @@ constructor(
             dpopProvider,
             tokenStorage,
             uiImplementation,
-            PersistentContainerStorage(application),
+            containerStorage,
             sharedStorage,
             oauthRepo,
             keyRepo,
             assetLinkRepo,
-            name
+            name,
+            isWarmUpEnabled,
+            scope,
+            proactiveRefreshOptions,
+            userInfoCacheOptions,
+            isAccessTokenPersistenceEnabled,
+            storageEngineMigration
         )
     }
 
-    private val scope = CoroutineScope(Dispatchers.IO)
-
     /**
      * OAuth client ID.
      */
@@ -94,19 +160,65 @@ constructor(
 
     /**
      * Current access token.
+     * It can be read on any thread.
      */
     val accessToken: String?
-        @MainThread
         get() {
             return core.accessToken
         }
 
+    /**
+     * The current session state, and its changes.
+     * It can be collected on any thread, so unlike [AuthgearDelegate.onSessionStateChanged],
+     * collectors off the main thread are not posted to the main thread.
+     * Intermediate states are conflated, a slow collector only sees the latest one.
+     */
+    val sessionStateFlow: StateFlow<SessionState>
+        get() {
+            return core.sessionStateFlow
+        }
+
+    /**
+     * The current tokens, and their changes, for example when the access token is refreshed.
+     * Intermediate values are conflated, a slow collector only sees the latest one.
+     */
+    val tokensFlow: StateFlow<TokenSnapshot>
+        get() {
+            return core.tokensFlow
+        }
+
+    /**
+     * How many requests to Authgear were merged into an identical in-flight request.
+     * See [RequestCoalescingStats].
+     */
+    val requestCoalescingStats: RequestCoalescingStats
+        get() {
+            return oauthRepo.stats
+        }
+
+    /**
+     * How many requests to Authgear were retried or failed fast, and the state of the circuit breaker.
+     * See [RetryOptions].
+     */
+    val retryStats: RetryStats
+        get() {
+            return retryOAuthRepo.stats
+        }
+
     val idTokenHint: String?
         @MainThread
         get() {
             return core.idToken
         }
 
+    /**
+     * The claims of the current ID token, or null if there is no ID token.
+     */
+    val idTokenClaims: IDTokenClaims?
+        get() {
+            return core.idTokenClaims
+        }
+
     val canReauthenticate: Boolean
         @MainThread
         get() {
@@ -268,6 +380,13 @@ constructor(
      * configure() can be called more than once if it failed.
      * Otherwise, it is NOT recommended to call it more than once.
      *
+     * If isWarmUpEnabled is true, configure() also starts loading the discovery document,
+     * connecting to the endpoint and loading the DPoP key in the background.
+     * [AuthgearDelegate.onWarmUpFinished] is called when it has finished.
+     *
+     * If isAccessTokenPersistenceEnabled is true, configure() also restores the access token stored
+     * by the [TokenStorage] in the last run. If it has not expired, no refresh is needed.
+     *
      * @param onConfigureListener The listener.
      * @param handler The handler of the thread on which the listener is called.
      */
@@ -327,12 +446,25 @@ constructor(
         }
     }
 
+    /**
+     * Stop all the work of this instance. Calls in progress are cancelled, and their listeners are not called.
+     * Token writes that have been started are still finished.
+     * This instance must not be used afterwards.
+     * The dispatcher passed to the constructor is not closed, it is owned by the caller.
+     */
+    fun shutdown() {
+        scope.cancel()
+        core.shutdown()
+    }
+
     /**
      * Refresh access token when necessary synchronously if needed. Do *NOT* call this on the main
      * thread.
      */
     @WorkerThread
     fun refreshAccessTokenIfNeededSync(): String? {
+        // Most of the time the access token is fresh, there is no need to block.
+        core.getAccessTokenIfFresh()?.let { return it }
         return runBlocking {
             withContext(scope.coroutineContext) {
                 core.refreshAccessTokenIfNeeded()
@@ -340,6 +472,36 @@ constructor(
         }
     }
 
+    /**
+     * Refresh access token synchronously because the server rejected [rejectedAccessToken],
+     * for example with a 401 response. If the access token has already been refreshed since then,
+     * the current access token is returned without refreshing again. Do *NOT* call this on the main
+     * thread.
+     */
+    @WorkerThread
+    fun refreshRejectedAccessTokenSync(rejectedAccessToken: String?): String? {
+        return runBlocking {
+            withContext(scope.coroutineContext) {
+                core.refreshRejectedAccessToken(rejectedAccessToken)
+            }
+        }
+    }
+
+    /**
+     * Generate a DPoP proof for a request to a resource server, with the key bound to the access token.
+     * Return null if DPoP is not supported on this device, in which case the access token is not DPoP-bound.
+     * Do *NOT* call this on the main thread, the key may have to be loaded from AndroidKeyStore.
+     *
+     * @param method The HTTP method of the request.
+     * @param uri The URI of the request, without query and fragment.
+     * @param accessToken The access token sent with the request. Its hash is included as the ath claim.
+     * @param nonce The nonce given by the server in the DPoP-Nonce header, if any.
+     */
+    @WorkerThread
+    fun generateDPoPProof(method: String, uri: String, accessToken: String?, nonce: String?): String? {
+        return core.generateDPoPProof(method, uri, accessToken, nonce)
+    }
+
     /**
      * Refresh access token when necessary.
      * @param onRefreshAccessTokenIfNeededListener The listener.
@@ -582,6 +744,37 @@ constructor(
         }
     }
 
+    /**
+     * Return the cached user info if there is one, otherwise fetch it like [fetchUserInfo].
+     * If the cached user info is older than [UserInfoCacheOptions.maxAgeSeconds], or a new ID token
+     * has been received since it was fetched, it is still returned, and it is fetched again in the background.
+     * The fetched user info is delivered to [AuthgearDelegate.onUserInfoUpdated].
+     *
+     * [UserInfoCacheOptions.isEnabled] must be set to true.
+     * @param onFetchUserInfoListener The listener.
+     * @param handler The handler of the thread on which the listener is called.
+     */
+    @MainThread
+    @JvmOverloads
+    fun fetchUserInfoStaleWhileRevalidate(
+        onFetchUserInfoListener: OnFetchUserInfoListener,
+        handler: Handler = Handler(Looper.getMainLooper())
+    ) {
+        scope.launch {
+            try {
+                val userInfo = core.fetchUserInfoStaleWhileRevalidate()
+                handler.post {
+                    onFetchUserInfoListener.onFetchedUserInfo(userInfo)
+                }
+            } catch (e: Exception) {
+                e.printStackTrace()
+                handler.post {
+                    onFetchUserInfoListener.onFetchingUserInfoFailed(e)
+                }
+            }
+        }
+    }
+
     /**
      * Refresh ID token.
      */
@@ -844,11 +1037,20 @@ constructor(
  * @see [Authgear.configure].
  */
 suspend fun Authgear.configure() {
-    return withContext(Dispatchers.IO) {
+    return withContext(dispatcher) {
         core.configure()
     }
 }
 
+/**
+ * Wait for the warm-up started by [Authgear.configure]. isWarmUpEnabled must be set to true.
+ * It throws if [Authgear.configure] has not been called, and if the warm-up is cancelled by [Authgear.shutdown].
+ * @see [AuthgearDelegate.onWarmUpFinished].
+ */
+suspend fun Authgear.awaitWarmUp(): WarmUpResult {
+    return core.awaitWarmUp()
+}
+
 /**
  * @see [Authgear.refreshAccessTokenIfNeededSync].
  */
@@ -856,6 +1058,13 @@ suspend fun Authgear.refreshTokenIfNeeded(): String? {
     return core.refreshAccessTokenIfNeeded()
 }
 
+/**
+ * @see [Authgear.refreshRejectedAccessTokenSync].
+ */
+suspend fun Authgear.refreshRejectedAccessToken(rejectedAccessToken: String?): String? {
+    return core.refreshRejectedAccessToken(rejectedAccessToken)
+}
+
 /**
  * @see [Authgear.authenticate].
  */
@@ -868,7 +1077,7 @@ suspend fun Authgear.authenticate(options: AuthenticateOptions): UserInfo {
  */
 @ExperimentalAuthgearApi
 suspend fun Authgear.createAuthenticateRequest(options: AuthenticateOptions): AuthenticationRequest {
-    return withContext(Dispatchers.IO) {
+    return withContext(dispatcher) {
         core.createAuthenticateRequest(options)
     }
 }
@@ -878,7 +1087,7 @@ suspend fun Authgear.createAuthenticateRequest(options: AuthenticateOptions): Au
  */
 @ExperimentalAuthgearApi
 suspend fun Authgear.createReauthenticateRequest(options: ReauthenticateOptions): AuthenticationRequest {
-    return withContext(Dispatchers.IO) {
+    return withContext(dispatcher) {
         core.createReauthenticateRequest(options)
     }
 }
@@ -891,7 +1100,7 @@ suspend fun Authgear.finishAuthentication(
     finishUri: String,
     request: AuthenticationRequest
 ): UserInfo {
-    return withContext(Dispatchers.IO) {
+    return withContext(dispatcher) {
         core.finishAuthorization(finishUri, request.verifier)
     }
 }
@@ -904,7 +1113,7 @@ suspend fun Authgear.finishReauthentication(
     finishUri: String,
     request: AuthenticationRequest
 ): UserInfo {
-    return withContext(Dispatchers.IO) {
+    return withContext(dispatcher) {
         core.finishReauthentication(finishUri, request.verifier)
     }
 }
@@ -934,11 +1143,20 @@ suspend fun Authgear.promoteAnonymousUser(options: PromoteOptions): UserInfo {
  * @see [Authgear.fetchUserInfo].
  */
 suspend fun Authgear.fetchUserInfo(): UserInfo {
-    return withContext(Dispatchers.IO) {
+    return withContext(dispatcher) {
         core.fetchUserInfo()
     }
 }
 
+/**
+ * @see [Authgear.fetchUserInfoStaleWhileRevalidate].
+ */
+suspend fun Authgear.fetchUserInfoStaleWhileRevalidate(): UserInfo {
+    return withContext(dispatcher) {
+        core.fetchUserInfoStaleWhileRevalidate()
+    }
+}
+
 /**
  * @see [Authgear.enableBiometric]
  */
@@ -991,7 +1209,7 @@ suspend fun Authgear.makePreAuthenticatedURL(options: PreAuthenticatedURLOptions
  */
 @ExperimentalAuthgearApi
 suspend fun Authgear.generateUrl(redirectURI: String): Uri {
-    return withContext(Dispatchers.IO) {
+    return withContext(dispatcher) {
         core.generateUrl(redirectURI)
     }
 }
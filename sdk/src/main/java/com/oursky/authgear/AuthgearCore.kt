@@ -10,6 +10,7 @@ import android.os.Build
 import android.os.Handler
 import android.os.Looper
 import android.security.keystore.KeyPermanentlyInvalidatedException
+import android.util.Log
 import androidx.annotation.RequiresApi
 import androidx.biometric.BiometricManager
 import androidx.biometric.BiometricPrompt
@@ -21,18 +22,25 @@ import com.oursky.authgear.data.assetlink.AssetLinkRepo
 import com.oursky.authgear.data.key.KeyRepo
 import com.oursky.authgear.data.oauth.OAuthRepo
 import com.oursky.authgear.dpop.DPoPProvider
+import com.oursky.authgear.net.HTTPClientHelper
 import com.oursky.authgear.net.toQueryParameter
 import com.oursky.authgear.oauth.OidcAuthenticationRequest
 import com.oursky.authgear.oauth.OidcTokenRequest
 import com.oursky.authgear.oauth.OidcTokenResponse
 import com.oursky.authgear.oauth.toQuery
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.CoroutineStart
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.async
 import kotlinx.coroutines.coroutineScope
-import kotlinx.serialization.json.booleanOrNull
-import kotlinx.serialization.json.jsonPrimitive
-import kotlinx.serialization.json.longOrNull
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.launch
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
 import java.lang.RuntimeException
 import java.net.URLEncoder
 import java.nio.charset.StandardCharsets
@@ -42,6 +50,11 @@ import java.security.SecureRandom
 import java.time.Duration
 import java.time.Instant
 import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.coroutines.Continuation
 import kotlin.coroutines.resume
@@ -67,11 +80,18 @@ internal class AuthgearCore(
     private val oauthRepo: OAuthRepo,
     private val keyRepo: KeyRepo,
     private val assetLinkRepo: AssetLinkRepo,
-    private val name: String
+    private val name: String,
+    private val isWarmUpEnabled: Boolean,
+    private val scope: CoroutineScope,
+    proactiveRefreshOptions: ProactiveRefreshOptions,
+    private val userInfoCacheOptions: UserInfoCacheOptions,
+    private val isAccessTokenPersistenceEnabled: Boolean,
+    private val storageEngineMigration: StorageEngineMigration
 ) {
     companion object {
         @Suppress("unused")
         private val TAG = AuthgearCore::class.java.simpleName
+        private const val LOGTAG = "Authgear"
 
         /**
          * To prevent user from using expired access token, we have to check in advance
@@ -100,15 +120,42 @@ internal class AuthgearCore(
     )
 
     private var isInitialized = false
-    private var refreshToken: String? = null
-    var accessToken: String? = null
-        private set
-    var idToken: String? = null
-        private set
-    private var expireAt: Instant? = null
-    var sessionState: SessionState = SessionState.UNKNOWN
-        private set
+    // Readers take a snapshot without locking.
+    // Writers hold the lock of this, so that the persisted writes are in the same order as the snapshots.
+    private val session = AtomicReference(SessionSnapshot.EMPTY)
+    private val refreshToken: String?
+        get() = session.get().refreshToken
+    val accessToken: String?
+        get() = session.get().accessToken
+    val idToken: String?
+        get() = session.get().idToken
+    val idTokenClaims: IDTokenClaims?
+        get() = session.get().idTokenClaims
+    // StateFlow only keeps the latest value, so slow collectors are never queued behind stale updates.
+    private val mutableSessionStateFlow = MutableStateFlow(SessionState.UNKNOWN)
+    val sessionStateFlow: StateFlow<SessionState> = mutableSessionStateFlow.asStateFlow()
+    val sessionState: SessionState
+        get() = mutableSessionStateFlow.value
+    private val mutableTokensFlow = MutableStateFlow(SessionSnapshot.EMPTY.toTokenSnapshot())
+    val tokensFlow: StateFlow<TokenSnapshot> = mutableTokensFlow.asStateFlow()
+    private val mainHandler = Handler(Looper.getMainLooper())
     private val refreshAccessTokenJob = AtomicReference<Job>(null)
+    // Token writes are done on a single background thread, off the refresh critical path.
+    private val persistenceExecutor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "authgear-persistence").apply { isDaemon = true }
+    }
+    private val persistenceLock = Any()
+    // The last submitted write. Writes run in order, so it finishes after all the others.
+    private var pendingPersistence: Future<*>? = null
+    private val userInfoCacheLock = Any()
+    // Loaded from the storage on first use. Guarded by userInfoCacheLock.
+    private var userInfoCacheEntry: UserInfoCacheEntry? = null
+    private var isUserInfoCacheLoaded = false
+    // Incremented when the session is cleared, so that a fetch started before that is not cached.
+    private var userInfoCacheGeneration = 0L
+    private val isRevalidatingUserInfo = AtomicBoolean(false)
+    private val isWarmUpStarted = AtomicBoolean(false)
+    private val warmUpResult = CompletableDeferred<WarmUpResult>()
     var delegate: AuthgearDelegate? = null
 
     private val app2app: App2App = App2App(
@@ -120,6 +167,22 @@ internal class AuthgearCore(
         assetLinkRepo
     )
 
+    private val tokenRefreshScheduler: TokenRefreshScheduler? =
+        if (proactiveRefreshOptions.isEnabled) {
+            TokenRefreshScheduler(
+                application,
+                proactiveRefreshOptions,
+                scope,
+                getExpireAt = {
+                    val session = this.session.get()
+                    if (session.refreshToken == null) null else (session.expireAt ?: Instant.EPOCH)
+                },
+                refresh = { refreshAccessToken() }
+            )
+        } else {
+            null
+        }
+
     init {
         oauthRepo.endpoint = authgearEndpoint
 
@@ -130,29 +193,38 @@ internal class AuthgearCore(
 
     val canReauthenticate: Boolean
         get() {
-            val idToken = this.idToken
-            if (idToken == null) {
-                return false
-            }
-            val jsonObject = decodeJWT(idToken)
-            val can = jsonObject["https://authgear.com/claims/user/can_reauthenticate"]
-            return can?.jsonPrimitive?.booleanOrNull ?: false
+            return idTokenClaims?.canReauthenticate ?: false
         }
 
     val authTime: Date?
         get() {
-            val idToken = this.idToken
-            if (idToken == null) {
-                return null
-            }
-            val jsonObject = decodeJWT(idToken)
-            val authTimeValue = jsonObject["auth_time"]?.jsonPrimitive?.longOrNull
-            if (authTimeValue == null) {
-                return null
-            }
-            return Date(authTimeValue * 1000)
+            return idTokenClaims?.authTime
         }
 
+    // Must be called with the lock of this held.
+    private fun updateSession(update: (SessionSnapshot) -> SessionSnapshot): SessionSnapshot {
+        val newSession = update(session.get())
+        session.set(newSession)
+        mutableTokensFlow.value = newSession.toTokenSnapshot()
+        return newSession
+    }
+
+    private fun SessionSnapshot.withIDToken(idToken: String?): SessionSnapshot {
+        if (idToken == this.idToken) {
+            return this
+        }
+        return copy(idToken = idToken, idTokenClaims = idToken?.let { parseIDTokenClaims(it) })
+    }
+
+    private fun parseIDTokenClaims(idToken: String): IDTokenClaims? {
+        return try {
+            IDTokenClaims.parse(idToken)
+        } catch (e: Exception) {
+            Log.w(LOGTAG, "failed to parse ID token", e)
+            null
+        }
+    }
+
     private fun requireIsPreAuthenticatedURLEnabled() {
         require(preAuthenticatedURLEnabled) {
             "preAuthenticatedURLEnabled must be set to true"
@@ -208,7 +280,7 @@ internal class AuthgearCore(
             now = Instant.now(),
             challenge = challenge,
             action = "auth",
-            deviceInfo = getDeviceInfo(this.application)
+            deviceInfo = DeviceInfoCache.get(this.application)
         )
 
         val signature = makeSignature(keyPair.private)
@@ -218,7 +290,7 @@ internal class AuthgearCore(
             OidcTokenRequest(
                 grantType = GrantType.ANONYMOUS,
                 clientId = clientId,
-                xDeviceInfo = getDeviceInfo(this.application).toBase64URLEncodedString(),
+                xDeviceInfo = DeviceInfoCache.getEncoded(this.application),
                 jwt = jwt
             )
         )
@@ -265,7 +337,8 @@ internal class AuthgearCore(
     ): AuthenticationRequest {
         requireIsInitialized()
 
-        val refreshToken = tokenStorage.getRefreshToken(name)
+        // The session in memory is always the latest, even if writing it to the storage has failed.
+        val refreshToken = session.get().refreshToken
             ?: throw UnauthenticatedUserException()
 
         val token: String
@@ -338,21 +411,117 @@ internal class AuthgearCore(
     @Suppress("RedundantSuspendModifier")
     suspend fun configure() {
         isInitialized = true
+        awaitPersistence()
+        storageEngineMigration.run()
         val refreshToken = tokenStorage.getRefreshToken(name)
-        this.refreshToken = refreshToken
+        val deviceSecret = if (refreshToken != null) sharedStorage.getDeviceSecret(name) else null
+        synchronized(this) {
+            updateSession { session -> session.copy(refreshToken = refreshToken, deviceSecret = deviceSecret) }
+        }
         if (refreshToken != null) {
+            if (isAccessTokenPersistenceEnabled) {
+                restoreAccessToken()
+            }
             // Consider user as logged in if refresh token is available
             updateSessionState(SessionState.AUTHENTICATED, SessionStateChangeReason.FOUND_TOKEN)
         } else {
+            if (userInfoCacheOptions.isEnabled) {
+                // Left behind if the app died during a logout.
+                deleteUserInfoCache()
+            }
             updateSessionState(SessionState.NO_SESSION, SessionStateChangeReason.NO_TOKEN)
         }
+        if (isWarmUpEnabled) {
+            startWarmUp()
+        }
+        tokenRefreshScheduler?.start()
+    }
+
+    suspend fun awaitWarmUp(): WarmUpResult {
+        require(isWarmUpEnabled) {
+            "isWarmUpEnabled must be set to true"
+        }
+        // Otherwise nothing would ever complete the result.
+        check(isWarmUpStarted.get()) {
+            "configure() must be called before awaitWarmUp()"
+        }
+        return warmUpResult.await()
+    }
+
+    private fun startWarmUp() {
+        // configure() can be called more than once, but warming up once is enough.
+        if (!isWarmUpStarted.compareAndSet(false, true)) {
+            return
+        }
+        val job = scope.launch {
+            val startedAt = System.nanoTime()
+            val steps = coroutineScope {
+                val connection = async {
+                    listOf(
+                        runWarmUpStep(WarmUpStep.OIDC_CONFIGURATION) {
+                            oauthRepo.getOidcConfiguration()
+                        },
+                        // The connection is made to the host in the configuration.
+                        runWarmUpStep(WarmUpStep.CONNECTION) {
+                            oauthRepo.warmUpConnection()
+                        }
+                    )
+                }
+                val deviceInfo = async {
+                    listOf(
+                        runWarmUpStep(WarmUpStep.DEVICE_INFO) {
+                            DeviceInfoCache.getEncoded(application)
+                        }
+                    )
+                }
+                val dpopKey = async {
+                    listOf(
+                        runWarmUpStep(WarmUpStep.DPOP_KEY) {
+                            dPoPProvider.computeJKT()
+                        }
+                    )
+                }
+                connection.await() + deviceInfo.await() + dpopKey.await()
+            }
+            val result = WarmUpResult(
+                steps = steps,
+                durationMillis = (System.nanoTime() - startedAt) / 1_000_000
+            )
+            warmUpResult.complete(result)
+            mainHandler.post {
+                this@AuthgearCore.delegate?.onWarmUpFinished(this@AuthgearCore.authgear, result)
+            }
+        }
+        // The job does not finish the warm-up if it is cancelled by shutdown(), even before it starts.
+        job.invokeOnCompletion { cause ->
+            if (cause != null) {
+                warmUpResult.completeExceptionally(cause)
+            }
+        }
+    }
+
+    private inline fun runWarmUpStep(step: WarmUpStep, block: () -> Unit): WarmUpStepResult {
+        val startedAt = System.nanoTime()
+        var error: Throwable? = null
+        try {
+            block()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            error = e
+        }
+        return WarmUpStepResult(
+            step = step,
+            durationMillis = (System.nanoTime() - startedAt) / 1_000_000,
+            error = error
+        )
     }
 
     @Suppress("RedundantSuspendModifier")
     suspend fun logout(force: Boolean? = null) {
         requireIsInitialized()
         try {
-            val refreshToken = tokenStorage.getRefreshToken(name) ?: ""
+            val refreshToken = session.get().refreshToken ?: ""
             oauthRepo.oidcRevocationRequest(refreshToken)
         } catch (e: Exception) {
             if (force != true) {
@@ -394,7 +563,8 @@ internal class AuthgearCore(
     suspend fun generateUrl(redirectUri: String, options: SettingOptions? = null): Uri {
         requireIsInitialized()
 
-        val refreshToken = tokenStorage.getRefreshToken(name)
+        // The session in memory is always the latest, even if writing it to the storage has failed.
+        val refreshToken = session.get().refreshToken
             ?: throw UnauthenticatedUserException()
 
         val token: String
@@ -473,7 +643,7 @@ internal class AuthgearCore(
             now = Instant.now(),
             challenge = challenge,
             action = "promote",
-            deviceInfo = getDeviceInfo(this.application)
+            deviceInfo = DeviceInfoCache.get(this.application)
 
         )
         val signature = makeSignature(keyPair.private)
@@ -516,12 +686,169 @@ internal class AuthgearCore(
 
         val accessToken: String = this.accessToken
             ?: throw UnauthenticatedUserException()
+        val generation = synchronized(userInfoCacheLock) { userInfoCacheGeneration }
+        val userInfo: UserInfo
         try {
-            return oauthRepo.oidcUserInfoRequest(accessToken ?: "")
+            userInfo = oauthRepo.oidcUserInfoRequest(accessToken ?: "")
         } catch (e: Exception) {
             handleInvalidGrantError(e)
             throw e
         }
+        saveUserInfoCache(userInfo, generation)
+        return userInfo
+    }
+
+    suspend fun fetchUserInfoStaleWhileRevalidate(): UserInfo {
+        requireIsInitialized()
+        require(userInfoCacheOptions.isEnabled) {
+            "userInfoCacheOptions.isEnabled must be set to true"
+        }
+        val entry = getUserInfoCacheEntry() ?: return fetchUserInfo()
+        val age = System.currentTimeMillis() - entry.fetchedAt
+        if (entry.isStale || age > userInfoCacheOptions.maxAgeSeconds * 1000) {
+            revalidateUserInfo()
+        }
+        return entry.userInfo
+    }
+
+    private fun revalidateUserInfo() {
+        if (!isRevalidatingUserInfo.compareAndSet(false, true)) {
+            return
+        }
+        scope.launch {
+            try {
+                fetchUserInfo()
+            } catch (e: Exception) {
+                // The cached user info is still served. It will be revalidated again next time.
+                Log.w(LOGTAG, "failed to revalidate user info", e)
+            } finally {
+                isRevalidatingUserInfo.set(false)
+            }
+        }
+    }
+
+    private fun getUserInfoCacheEntry(): UserInfoCacheEntry? {
+        // Never serve the cached user info without a session.
+        val session = this.session.get()
+        if (session.refreshToken == null) {
+            return null
+        }
+        val entry = synchronized(userInfoCacheLock) {
+            loadUserInfoCacheEntry()
+        } ?: return null
+        // The ID token is not known until the first refresh after a cold start.
+        val sub = session.idTokenClaims?.sub
+        if (sub != null && sub != entry.sub) {
+            return null
+        }
+        return entry
+    }
+
+    // Must be called with userInfoCacheLock held.
+    private fun loadUserInfoCacheEntry(): UserInfoCacheEntry? {
+        if (!isUserInfoCacheLoaded) {
+            awaitPersistence()
+            userInfoCacheEntry = storage.getUserInfoCache(name)?.let {
+                try {
+                    HTTPClientHelper.json.decodeFromString<UserInfoCacheEntry>(it)
+                } catch (e: Exception) {
+                    Log.w(LOGTAG, "failed to decode cached user info", e)
+                    null
+                }
+            }
+            isUserInfoCacheLoaded = true
+        }
+        return userInfoCacheEntry
+    }
+
+    private fun saveUserInfoCache(userInfo: UserInfo, generation: Long) {
+        if (!userInfoCacheOptions.isEnabled) {
+            return
+        }
+        val entry = UserInfoCacheEntry(
+            sub = userInfo.sub,
+            userInfo = userInfo,
+            fetchedAt = System.currentTimeMillis()
+        )
+        synchronized(userInfoCacheLock) {
+            // The session has been cleared or switched to another user since the fetch started.
+            val session = this.session.get()
+            if (generation != userInfoCacheGeneration || session.refreshToken == null) {
+                return
+            }
+            val sub = session.idTokenClaims?.sub
+            if (sub != null && sub != userInfo.sub) {
+                return
+            }
+            userInfoCacheEntry = entry
+            isUserInfoCacheLoaded = true
+            val encoded = HTTPClientHelper.json.encodeToString(entry)
+            persist {
+                storage.setUserInfoCache(name, encoded)
+            }
+        }
+        mainHandler.post {
+            this.delegate?.onUserInfoUpdated(this.authgear, userInfo)
+        }
+    }
+
+    // A new ID token means the user info may have changed, for example the user has just re-authenticated.
+    // The cached user info of the same user is still served, but it is revalidated.
+    // The cached user info of another user is dropped.
+    private fun invalidateUserInfoCache(claims: IDTokenClaims?) {
+        if (!userInfoCacheOptions.isEnabled) {
+            return
+        }
+        synchronized(userInfoCacheLock) {
+            if (!isUserInfoCacheLoaded) {
+                // Do not load the cache just to invalidate it. The persistence thread reads and updates it instead,
+                // and the next load waits for that.
+                persist {
+                    val encoded = storage.getUserInfoCache(name) ?: return@persist
+                    val entry = try {
+                        HTTPClientHelper.json.decodeFromString<UserInfoCacheEntry>(encoded)
+                    } catch (e: Exception) {
+                        null
+                    }
+                    val invalidatedEntry = entry?.let { invalidateUserInfoCacheEntry(it, claims) }
+                    if (invalidatedEntry != null) {
+                        storage.setUserInfoCache(name, HTTPClientHelper.json.encodeToString(invalidatedEntry))
+                    } else {
+                        storage.deleteUserInfoCache(name)
+                    }
+                }
+                return
+            }
+            val entry = userInfoCacheEntry ?: return
+            val invalidatedEntry = invalidateUserInfoCacheEntry(entry, claims)
+            if (invalidatedEntry != null) {
+                userInfoCacheEntry = invalidatedEntry
+                val encoded = HTTPClientHelper.json.encodeToString(invalidatedEntry)
+                persist {
+                    storage.setUserInfoCache(name, encoded)
+                }
+            } else {
+                deleteUserInfoCache()
+            }
+        }
+    }
+
+    // Return null if the entry has to be dropped.
+    private fun invalidateUserInfoCacheEntry(entry: UserInfoCacheEntry, claims: IDTokenClaims?): UserInfoCacheEntry? {
+        if (claims?.sub != entry.sub) {
+            return null
+        }
+        return entry.copy(isStale = true)
+    }
+
+    private fun deleteUserInfoCache() {
+        synchronized(userInfoCacheLock) {
+            userInfoCacheEntry = null
+            isUserInfoCacheLoaded = true
+            persist {
+                storage.deleteUserInfoCache(name)
+            }
+        }
     }
 
     suspend fun refreshIDToken() {
@@ -531,14 +858,14 @@ internal class AuthgearCore(
         val accessToken: String = this.accessToken
             ?: throw UnauthenticatedUserException()
 
-        val deviceSecret = this.sharedStorage.getDeviceSecret(name)
+        val deviceSecret = session.get().deviceSecret
 
         try {
             val tokenResponse = oauthRepo.oidcTokenRequest(
                 OidcTokenRequest(
                     grantType = com.oursky.authgear.GrantType.ID_TOKEN,
                     clientId = clientId,
-                    xDeviceInfo = getDeviceInfo(this.application).toBase64URLEncodedString(),
+                    xDeviceInfo = DeviceInfoCache.getEncoded(this.application),
                     accessToken = accessToken,
                     deviceSecret = deviceSecret
                 )
@@ -559,21 +886,107 @@ internal class AuthgearCore(
         return accessToken
     }
 
+    /**
+     * Return the access token if it does not need to be refreshed, without suspending.
+     * Return null if it has to be refreshed, or there is no session.
+     */
+    fun getAccessTokenIfFresh(): String? {
+        val session = this.session.get()
+        if (!isInitialized || shouldRefreshAccessToken(session)) {
+            return null
+        }
+        return session.accessToken
+    }
+
+    /**
+     * Refresh the access token because it was rejected by the server.
+     * If the access token has changed since it was rejected, it is not refreshed again.
+     * Concurrent calls share the same refresh.
+     */
+    suspend fun refreshRejectedAccessToken(rejectedAccessToken: String?): String? {
+        requireIsInitialized()
+        val session = this.session.get()
+        val shouldRefresh = session.refreshToken != null && session.accessToken == rejectedAccessToken
+        if (shouldRefresh) {
+            refreshAccessToken()
+        }
+        return accessToken
+    }
+
+    fun generateDPoPProof(htm: String, htu: String, accessToken: String?, nonce: String?): String? {
+        return dPoPProvider.generateDPoPProof(htm, htu, accessToken, nonce)
+    }
+
+    fun shutdown() {
+        tokenRefreshScheduler?.stop()
+        // Submitted writes are still run, so the storages are left consistent.
+        persistenceExecutor.shutdown()
+    }
+
+    /**
+     * Run a storage write on the persistence thread.
+     * Writes are run one by one in the order they are submitted.
+     */
+    private fun persist(block: () -> Unit): Future<*> {
+        synchronized(persistenceLock) {
+            val future = persistenceExecutor.submit {
+                try {
+                    block()
+                } catch (e: Exception) {
+                    Log.w(LOGTAG, "failed to persist tokens", e)
+                    mainHandler.post {
+                        this.delegate?.onPersistenceFailed(this.authgear, e)
+                    }
+                    throw e
+                }
+            }
+            pendingPersistence = future
+            return future
+        }
+    }
+
+    /**
+     * Wait for all submitted writes, so that the storages can be read.
+     */
+    private fun awaitPersistence() {
+        val future = synchronized(persistenceLock) { pendingPersistence } ?: return
+        try {
+            future.get()
+        } catch (e: ExecutionException) {
+            // It has been reported to the delegate. The in-memory tokens are still good.
+        }
+    }
+
     fun clearSessionState() {
         requireIsInitialized()
         clearSession(SessionStateChangeReason.CLEAR)
     }
 
+    // Restore the tokens of the last run, so that no refresh is needed while the access token is still valid.
+    private fun restoreAccessToken() {
+        val idToken = sharedStorage.getIDToken(name)
+        val (accessToken, expireAt) = tokenStorage.getAccessToken(name) ?: Pair(null, null)
+        synchronized(this) {
+            updateSession { session ->
+                val restored = session.withIDToken(idToken)
+                if (accessToken != null && expireAt != null && expireAt.isAfter(Instant.now())) {
+                    restored.copy(accessToken = accessToken, expireAt = expireAt)
+                } else {
+                    restored
+                }
+            }
+        }
+    }
+
     private fun updateSessionState(state: SessionState, reason: SessionStateChangeReason, error: Throwable? = null) {
         // TODO: Add re-entry detection
-        sessionState = state
-        val handler = Handler(Looper.getMainLooper())
-        handler.post {
+        mutableSessionStateFlow.value = state
+        mainHandler.post {
             this.delegate?.onSessionStateChanged(this.authgear, reason, error)
         }
     }
 
-    private fun authorizeEndpoint(
+    private suspend fun authorizeEndpoint(
         clientID: String,
         request: OidcAuthenticationRequest,
         codeVerifier: Verifier?
@@ -615,10 +1028,10 @@ internal class AuthgearCore(
         return md.digest()
     }
 
-    private fun shouldRefreshAccessToken(): Boolean {
-        if (refreshToken == null) return false
-        if (accessToken == null) return true
-        val expireAt = this.expireAt ?: return true
+    private fun shouldRefreshAccessToken(session: SessionSnapshot = this.session.get()): Boolean {
+        if (session.refreshToken == null) return false
+        if (session.accessToken == null) return true
+        val expireAt = session.expireAt ?: return true
         val now = Instant.now()
         if (expireAt.isBefore(now)) return true
         return false
@@ -631,8 +1044,11 @@ internal class AuthgearCore(
                 doRefreshAccessToken()
             }
             if (refreshAccessTokenJob.compareAndSet(null, job)) {
-                job.await()
-                refreshAccessTokenJob.set(null)
+                try {
+                    job.await()
+                } finally {
+                    refreshAccessTokenJob.set(null)
+                }
             } else {
                 job.cancel()
                 // Another thread already started refreshing access token. Try to await.
@@ -649,21 +1065,24 @@ internal class AuthgearCore(
 
     @Suppress("RedundantSuspendModifier")
     private suspend fun doRefreshAccessToken() {
-        val refreshToken = tokenStorage.getRefreshToken(name)
+        // The session in memory is always the latest, even if writing it to the storage has failed.
+        // A stale refresh token would have been rotated already, and the user would be logged out.
+        val session = this.session.get()
+        val refreshToken = session.refreshToken
         if (refreshToken == null) {
             // Somehow we are asked to refresh access token but we don't have the refresh token.
             // Something went wrong, clear session.
             clearSession(SessionStateChangeReason.NO_TOKEN)
             return
         }
-        val deviceSecret = sharedStorage.getDeviceSecret(name)
+        val deviceSecret = session.deviceSecret
         val tokenResponse: OidcTokenResponse?
         try {
             tokenResponse = oauthRepo.oidcTokenRequest(
                 OidcTokenRequest(
                     grantType = GrantType.REFRESH_TOKEN,
                     clientId = clientId,
-                    xDeviceInfo = getDeviceInfo(this.application).toBase64URLEncodedString(),
+                    xDeviceInfo = DeviceInfoCache.getEncoded(this.application),
                     refreshToken = refreshToken,
                     deviceSecret = deviceSecret
                 )
@@ -679,47 +1098,92 @@ internal class AuthgearCore(
     }
 
     private fun saveToken(tokenResponse: OidcTokenResponse, reason: SessionStateChangeReason) {
+        val isIDTokenChanged: Boolean
+        val idTokenClaims: IDTokenClaims?
         synchronized(this) {
-            if (tokenResponse.accessToken != null) {
-                accessToken = tokenResponse.accessToken
-            }
-            if (tokenResponse.refreshToken != null) {
-                refreshToken = tokenResponse.refreshToken
-            }
-            if (tokenResponse.idToken != null) {
-                idToken = tokenResponse.idToken
-            }
-            if (tokenResponse.expiresIn != null) {
-                expireAt =
-                    Instant.now() + Duration.ofSeconds((tokenResponse.expiresIn * EXPIRE_IN_PERCENTAGE).toLong())
+            val oldSession = session.get()
+            val newSession = updateSession { session ->
+                var newSession = session
+                if (tokenResponse.accessToken != null) {
+                    newSession = newSession.copy(accessToken = tokenResponse.accessToken)
+                }
+                if (tokenResponse.refreshToken != null) {
+                    newSession = newSession.copy(refreshToken = tokenResponse.refreshToken)
+                }
+                if (tokenResponse.idToken != null) {
+                    newSession = newSession.withIDToken(tokenResponse.idToken)
+                }
+                if (tokenResponse.deviceSecret != null) {
+                    newSession = newSession.copy(deviceSecret = tokenResponse.deviceSecret)
+                }
+                if (tokenResponse.expiresIn != null) {
+                    newSession = newSession.copy(
+                        expireAt = Instant.now() +
+                            Duration.ofSeconds((tokenResponse.expiresIn * EXPIRE_IN_PERCENTAGE).toLong())
+                    )
+                }
+                newSession
             }
+            isIDTokenChanged = newSession.idToken != oldSession.idToken
+            idTokenClaims = newSession.idTokenClaims
             updateSessionState(SessionState.AUTHENTICATED, reason)
+            val refreshToken = newSession.refreshToken
+            val idToken = newSession.idToken
+            val deviceSecret = tokenResponse.deviceSecret
+            val accessToken = newSession.accessToken
+            val expireAt = newSession.expireAt
+            // The caller only needs the tokens in memory, so the writes are done in the background.
+            // Submitting while holding the lock keeps the writes in the same order as the updates above.
+            // Each storage is written atomically, but the two storages are not written atomically together.
+            // If the app dies between them, the next run finds the new refresh token
+            // with the previous ID token and device secret, and the next refresh replaces them.
+            persist {
+                if (refreshToken != null) {
+                    tokenStorage.setRefreshToken(name, refreshToken)
+                }
+                sharedStorage.setIDTokenAndDeviceSecret(name, idToken, deviceSecret)
+                if (isAccessTokenPersistenceEnabled && accessToken != null && expireAt != null) {
+                    tokenStorage.setAccessToken(name, accessToken, expireAt)
+                }
+            }
         }
-        val refreshToken = this.refreshToken
-        val idToken = this.idToken
-        val deviceSecret = tokenResponse.deviceSecret
-        if (refreshToken != null) {
-            tokenStorage.setRefreshToken(name, refreshToken)
-        }
-        if (idToken != null) {
-            sharedStorage.setIDToken(name, idToken)
-        }
-        if (deviceSecret != null) {
-            sharedStorage.setDeviceSecret(name, deviceSecret)
+        // Outside the lock, it may have to wait for the storage.
+        if (isIDTokenChanged) {
+            invalidateUserInfoCache(idTokenClaims)
         }
+        tokenRefreshScheduler?.onSessionChanged()
     }
 
     internal fun clearSession(changeReason: SessionStateChangeReason, error: Throwable? = null) {
-        tokenStorage.deleteRefreshToken(name)
-        sharedStorage.onLogout(name)
+        // Deleting through the same thread makes sure no pending write brings the tokens back.
+        val deletion = synchronized(this) {
+            persist {
+                tokenStorage.deleteRefreshToken(name)
+                // Deleted even if the persistence is disabled now, it may have been enabled before.
+                tokenStorage.deleteAccessToken(name)
+                sharedStorage.onLogout(name)
+                storage.deleteUserInfoCache(name)
+            }
+        }
+        // This is the durability barrier. When clearSession returns, the tokens are gone from disk.
+        try {
+            deletion.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+        // onLogout removed the DPoP key id, a new key will be generated.
+        dPoPProvider.clearCachedKey()
         storage.deleteApp2AppDeviceKeyId(name)
+        synchronized(userInfoCacheLock) {
+            userInfoCacheEntry = null
+            isUserInfoCacheLoaded = true
+            userInfoCacheGeneration += 1
+        }
         synchronized(this) {
-            accessToken = null
-            refreshToken = null
-            idToken = null
-            expireAt = null
+            updateSession { SessionSnapshot.EMPTY }
             updateSessionState(SessionState.NO_SESSION, changeReason, error)
         }
+        tokenRefreshScheduler?.onSessionChanged()
     }
 
     private suspend fun openAuthorizeUrl(
@@ -741,7 +1205,7 @@ internal class AuthgearCore(
         }
     }
 
-    fun finishAuthorization(deepLink: String, verifier: Verifier? = null): UserInfo {
+    suspend fun finishAuthorization(deepLink: String, verifier: Verifier? = null): UserInfo {
         val uri = Uri.parse(deepLink)
         val redirectUri = "${uri.scheme}://${uri.authority}${uri.path}"
         val state = uri.getQueryParameter("state")
@@ -775,7 +1239,7 @@ internal class AuthgearCore(
             OidcTokenRequest(
                 grantType = GrantType.AUTHORIZATION_CODE,
                 clientId = clientId,
-                xDeviceInfo = getDeviceInfo(this.application).toBase64URLEncodedString(),
+                xDeviceInfo = DeviceInfoCache.getEncoded(this.application),
                 code = code,
                 redirectUri = redirectUri,
                 codeVerifier = codeVerifier ?: "",
@@ -788,7 +1252,7 @@ internal class AuthgearCore(
         return userInfo
     }
 
-    private fun finishSettingsAction(deepLink: String, verifier: Verifier? = null) {
+    private suspend fun finishSettingsAction(deepLink: String, verifier: Verifier? = null) {
         val uri = Uri.parse(deepLink)
         val redirectUri = "${uri.scheme}://${uri.authority}${uri.path}"
         val state = uri.getQueryParameter("state")
@@ -818,7 +1282,7 @@ internal class AuthgearCore(
             OidcTokenRequest(
                 grantType = GrantType.SETTINGS_ACTION,
                 clientId = clientId,
-                xDeviceInfo = getDeviceInfo(this.application).toBase64URLEncodedString(),
+                xDeviceInfo = DeviceInfoCache.getEncoded(this.application),
                 code = code,
                 redirectUri = redirectUri,
                 codeVerifier = codeVerifier ?: "",
@@ -827,7 +1291,7 @@ internal class AuthgearCore(
         disableBiometric()
     }
 
-    fun finishReauthentication(deepLink: String, verifier: Verifier? = null): UserInfo {
+    suspend fun finishReauthentication(deepLink: String, verifier: Verifier? = null): UserInfo {
         val uri = Uri.parse(deepLink)
         val redirectUri = "${uri.scheme}://${uri.authority}${uri.path}"
         val state = uri.getQueryParameter("state")
@@ -861,7 +1325,7 @@ internal class AuthgearCore(
             OidcTokenRequest(
                 grantType = GrantType.AUTHORIZATION_CODE,
                 clientId = clientId,
-                xDeviceInfo = getDeviceInfo(this.application).toBase64URLEncodedString(),
+                xDeviceInfo = DeviceInfoCache.getEncoded(this.application),
                 code = code,
                 redirectUri = redirectUri,
                 codeVerifier = codeVerifier ?: "",
@@ -870,7 +1334,9 @@ internal class AuthgearCore(
         )
         val userInfo = oauthRepo.oidcUserInfoRequest(tokenResponse.accessToken!!)
         tokenResponse.idToken?.let {
-            this.idToken = it
+            synchronized(this) {
+                updateSession { session -> session.withIDToken(it) }
+            }
         }
         return userInfo
     }
@@ -959,7 +1425,7 @@ internal class AuthgearCore(
             now = Instant.now(),
             challenge = challenge,
             action = "setup",
-            deviceInfo = getDeviceInfo(this.application)
+            deviceInfo = DeviceInfoCache.get(this.application)
         )
         val lockedSignature = makeSignature(keyPair.private)
         val cryptoObject = BiometricPrompt.CryptoObject(lockedSignature)
@@ -996,8 +1462,7 @@ internal class AuthgearCore(
                         }
                     })
 
-            val handler = Handler(Looper.getMainLooper())
-            handler.post {
+            mainHandler.post {
                 prompt.authenticate(promptInfo, cryptoObject)
             }
         }
@@ -1046,7 +1511,7 @@ internal class AuthgearCore(
                 now = Instant.now(),
                 challenge = challenge,
                 action = "authenticate",
-                deviceInfo = getDeviceInfo(this.application)
+                deviceInfo = DeviceInfoCache.get(this.application)
             )
             val lockedSignature = makeSignature(keyPair.private)
             val cryptoObject = BiometricPrompt.CryptoObject(lockedSignature)
@@ -1083,8 +1548,7 @@ internal class AuthgearCore(
                             }
                         })
 
-                val handler = Handler(Looper.getMainLooper())
-                handler.post {
+                mainHandler.post {
                     prompt.authenticate(promptInfo, cryptoObject)
                 }
             }
@@ -1094,7 +1558,7 @@ internal class AuthgearCore(
                     OidcTokenRequest(
                         grantType = com.oursky.authgear.GrantType.BIOMETRIC,
                         clientId = clientId,
-                        xDeviceInfo = getDeviceInfo(this.application).toBase64URLEncodedString(),
+                        xDeviceInfo = DeviceInfoCache.getEncoded(this.application),
                         jwt = jwt,
                         scope = AuthenticateOptions.getScopes(
                             preAuthenticatedURLEnabled = preAuthenticatedURLEnabled
@@ -1162,9 +1626,11 @@ internal class AuthgearCore(
         if (sessionState != SessionState.AUTHENTICATED) {
             throw UnauthenticatedUserException()
         }
-        var idToken = sharedStorage.getIDToken(name)
+        val session = this.session.get()
+        // The ID token is only in memory after it is received or refreshed in this run.
+        var idToken = session.idToken ?: sharedStorage.getIDToken(name)
             ?: throw PreAuthenticatedURLNotAllowedIDTokenNotFoundException()
-        val deviceSecret = sharedStorage.getDeviceSecret(name)
+        val deviceSecret = session.deviceSecret
             ?: throw PreAuthenticatedURLNotAllowedDeviceSecretNotFoundException()
         try {
             val tokenExchangeResult = oauthRepo.oidcTokenRequest(
@@ -1187,18 +1653,28 @@ internal class AuthgearCore(
                 throw RuntimeException("unexpected: access_token is not returned");
             }
             if (newDeviceSecret != null) {
-                this.sharedStorage.setDeviceSecret(
-                    this.name,
-                    newDeviceSecret
-                );
+                synchronized(this) {
+                    updateSession { session -> session.copy(deviceSecret = newDeviceSecret) }
+                    persist {
+                        this.sharedStorage.setDeviceSecret(
+                            this.name,
+                            newDeviceSecret
+                        )
+                    }
+                }
             }
             if (newIDToken != null) {
-                this.idToken = newIDToken
+                synchronized(this) {
+                    updateSession { session -> session.withIDToken(newIDToken) }
+                    // Submitted while holding the lock, like saveToken, so that the writes keep the order of the updates.
+                    persist {
+                        this.sharedStorage.setIDToken(
+                            this.name,
+                            newIDToken
+                        )
+                    }
+                }
                 idToken = newIDToken
-                this.sharedStorage.setIDToken(
-                    this.name,
-                    newIDToken
-                );
             }
             return authorizeEndpoint(
                 clientID = options.webApplicationClientID,
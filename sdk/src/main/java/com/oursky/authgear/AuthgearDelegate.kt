@@ -7,4 +7,17 @@ interface AuthgearDelegate {
     fun onSessionStateChanged(container: Authgear, reason: SessionStateChangeReason, error: Throwable?) {}
 
     fun sendWechatAuthRequest(state: String) {}
+
+    // Called on the main thread when the warm-up started by configure() has finished.
+    // It is only called when warm-up is enabled.
+    fun onWarmUpFinished(container: Authgear, result: WarmUpResult) {}
+
+    // Called on the main thread whenever fetchUserInfo gets new user info from the server,
+    // including the background revalidation of fetchUserInfoStaleWhileRevalidate.
+    // It is only called when the user info cache is enabled.
+    fun onUserInfoUpdated(container: Authgear, userInfo: UserInfo) {}
+
+    // Called on the main thread when the tokens could not be written to the storage.
+    // The tokens in memory are still valid, but the session may be lost when the app restarts.
+    fun onPersistenceFailed(container: Authgear, error: Throwable) {}
 }
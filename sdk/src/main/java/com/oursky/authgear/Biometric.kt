@@ -87,7 +87,7 @@ internal fun getPrivateKey(alias: String): KeyPair? {
 }
 
 internal fun makeSignature(privateKey: PrivateKey): Signature {
-    val signature = Signature.getInstance("SHA256withRSA")
+    val signature = Signature.getInstance(makeSignatureAlgorithm(privateKey))
     signature.initSign(privateKey)
     return signature
 }
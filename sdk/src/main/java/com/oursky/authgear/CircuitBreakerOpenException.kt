@@ -0,0 +1,8 @@
+package com.oursky.authgear
+
+/**
+ * The request was not sent because the previous requests to Authgear kept failing. See [RetryOptions].
+ * @param retryAfterMillis How long until a request is let through again.
+ */
+class CircuitBreakerOpenException(val retryAfterMillis: Long) :
+    AuthgearException("requests to Authgear are failing, retry after $retryAfterMillis ms")
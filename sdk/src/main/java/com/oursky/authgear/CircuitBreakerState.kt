@@ -0,0 +1,21 @@
+package com.oursky.authgear
+
+/**
+ * The state of the circuit breaker in front of Authgear. See [RetryOptions].
+ */
+enum class CircuitBreakerState {
+    /**
+     * Requests are sent.
+     */
+    CLOSED,
+
+    /**
+     * Requests fail fast with [CircuitBreakerOpenException].
+     */
+    OPEN,
+
+    /**
+     * One request is being sent to probe whether Authgear has recovered. The others fail fast.
+     */
+    HALF_OPEN
+}
@@ -0,0 +1,74 @@
+package com.oursky.authgear
+
+import android.content.Context
+import android.os.Build
+import androidx.annotation.RequiresApi
+
+@RequiresApi(api = Build.VERSION_CODES.M)
+internal class CompactContainerStorage(val context: Context) : ContainerStorage {
+    companion object {
+        const val Verifier = "verifier"
+        const val AnonymousKeyId = "anonymousKeyId"
+        const val BiometricKeyId = "biometricKeyId"
+        const val App2AppDeviceKeyId = "app2appDeviceKeyId"
+        const val UserInfoCache = "userInfoCache"
+    }
+
+    private val store = CompactSecureStore.getInstance(context)
+
+    override fun setOidcCodeVerifier(namespace: String, verifier: String) {
+        store.put("$namespace.$Verifier", verifier)
+    }
+
+    override fun getOidcCodeVerifier(namespace: String): String? {
+        return store.get("$namespace.$Verifier")
+    }
+
+    override fun getAnonymousKeyId(namespace: String): String? {
+        return store.get("$namespace.$AnonymousKeyId")
+    }
+
+    override fun setAnonymousKeyId(namespace: String, keyId: String) {
+        store.put("$namespace.$AnonymousKeyId", keyId)
+    }
+
+    override fun deleteAnonymousKeyId(namespace: String) {
+        store.delete("$namespace.$AnonymousKeyId")
+    }
+
+    override fun getBiometricKeyId(namespace: String): String? {
+        return store.get("$namespace.$BiometricKeyId")
+    }
+
+    override fun setBiometricKeyId(namespace: String, keyId: String) {
+        store.put("$namespace.$BiometricKeyId", keyId)
+    }
+
+    override fun deleteBiometricKeyId(namespace: String) {
+        store.delete("$namespace.$BiometricKeyId")
+    }
+
+    override fun getApp2AppDeviceKeyId(namespace: String): String? {
+        return store.get("$namespace.$App2AppDeviceKeyId")
+    }
+
+    override fun setApp2AppDeviceKeyId(namespace: String, keyId: String) {
+        store.put("$namespace.$App2AppDeviceKeyId", keyId)
+    }
+
+    override fun deleteApp2AppDeviceKeyId(namespace: String) {
+        store.delete("$namespace.$App2AppDeviceKeyId")
+    }
+
+    override fun getUserInfoCache(namespace: String): String? {
+        return store.get("$namespace.$UserInfoCache")
+    }
+
+    override fun setUserInfoCache(namespace: String, value: String) {
+        store.put("$namespace.$UserInfoCache", value)
+    }
+
+    override fun deleteUserInfoCache(namespace: String) {
+        store.delete("$namespace.$UserInfoCache")
+    }
+}
@@ -0,0 +1,65 @@
+package com.oursky.authgear
+
+import android.content.Context
+import android.os.Build
+import androidx.annotation.RequiresApi
+
+@RequiresApi(api = Build.VERSION_CODES.M)
+internal class CompactInterAppSharedStorage(val context: Context) : InterAppSharedStorage {
+    companion object {
+        private const val IDToken = "idToken"
+        private const val DeviceSecret = "deviceSecret"
+        private const val DPoPKeyID = "dpopKeyId"
+    }
+
+    private val store = CompactSecureStore.getInstance(context)
+
+    override fun setIDToken(namespace: String, idToken: String) {
+        store.put("$namespace.$IDToken", idToken)
+    }
+
+    override fun getIDToken(namespace: String): String? {
+        return store.get("$namespace.$IDToken")
+    }
+
+    override fun deleteIDToken(namespace: String) {
+        store.delete("$namespace.$IDToken")
+    }
+
+    override fun setDeviceSecret(namespace: String, deviceSecret: String) {
+        store.put("$namespace.$DeviceSecret", deviceSecret)
+    }
+
+    override fun getDeviceSecret(namespace: String): String? {
+        return store.get("$namespace.$DeviceSecret")
+    }
+
+    override fun deleteDeviceSecret(namespace: String) {
+        store.delete("$namespace.$DeviceSecret")
+    }
+
+    override fun setDPoPKeyId(namespace: String, keyId: String) {
+        store.put("$namespace.$DPoPKeyID", keyId)
+    }
+
+    override fun getDPoPKeyId(namespace: String): String? {
+        return store.get("$namespace.$DPoPKeyID")
+    }
+
+    override fun deleteDPoPKeyId(namespace: String) {
+        store.delete("$namespace.$DPoPKeyID")
+    }
+
+    override fun setIDTokenAndDeviceSecret(namespace: String, idToken: String?, deviceSecret: String?) {
+        val values = mutableMapOf<String, String>()
+        idToken?.let { values["$namespace.$IDToken"] = it }
+        deviceSecret?.let { values["$namespace.$DeviceSecret"] = it }
+        store.putAll(values)
+    }
+
+    override fun onLogout(namespace: String) {
+        deleteDeviceSecret(namespace)
+        deleteIDToken(namespace)
+        deleteDPoPKeyId(namespace)
+    }
+}
@@ -0,0 +1,320 @@
+package com.oursky.authgear
+
+import android.content.Context
+import android.os.Build
+import android.security.keystore.KeyGenParameterSpec
+import android.security.keystore.KeyPermanentlyInvalidatedException
+import android.security.keystore.KeyProperties
+import android.util.Log
+import androidx.annotation.RequiresApi
+import androidx.annotation.VisibleForTesting
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.security.GeneralSecurityException
+import java.security.KeyStore
+import java.security.UnrecoverableKeyException
+import javax.crypto.Cipher
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+
+/**
+ * A small key-value store kept in a single append-only file.
+ *
+ * Every put or delete appends one record and syncs the file, so a write costs one small append
+ * instead of rewriting the whole XML file like SharedPreferences does.
+ * Each record is encrypted with AES-GCM by a key held in AndroidKeyStore.
+ * When the file has grown too much, the live entries are written to a new file,
+ * which replaces the old one with an atomic rename.
+ *
+ * The file is kept in noBackupFilesDir. The key in AndroidKeyStore is never backed up,
+ * so a restored file could never be decrypted anyway. See NOTE(backup).
+ *
+ * Record layout: length (int), IV (12 bytes), ciphertext of one or more (op (byte), key, value if op is PUT).
+ * A key or a value is its length in bytes (int) followed by its UTF-8 bytes.
+ * A record is a transaction, its operations are applied all together or not at all.
+ * A truncated record at the end of the file is the result of a crash during an append.
+ * It is cut off when the file is loaded, so that the next append starts at a record boundary.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+internal class CompactSecureStore private constructor(private val file: File) {
+    companion object {
+        private const val LOGTAG = "Authgear"
+        private const val KEY_ALIAS = "com.authgear.keys.compact_store"
+        private const val FILE_NAME = "com.authgear.compact_store"
+        private const val IV_LENGTH = 12
+        private const val TAG_LENGTH_BITS = 128
+        private const val TAG_LENGTH = TAG_LENGTH_BITS / 8
+        private const val OP_PUT: Byte = 1
+        private const val OP_DELETE: Byte = 2
+        // Compact when the file has this many records.
+        private const val COMPACTION_THRESHOLD = 64
+
+        private var instance: CompactSecureStore? = null
+
+        // All storages share one instance, because only one writer may append to the file.
+        @Synchronized
+        fun getInstance(context: Context): CompactSecureStore {
+            instance?.let { return it }
+            val store = CompactSecureStore(File(context.applicationContext.noBackupFilesDir, FILE_NAME))
+            instance = store
+            return store
+        }
+    }
+
+    private var entries: HashMap<String, String>? = null
+    private var recordCount = 0
+    private var secretKey: SecretKey? = null
+
+    @Synchronized
+    fun get(key: String): String? {
+        return load()[key]
+    }
+
+    @Synchronized
+    fun put(key: String, value: String) {
+        putAll(mapOf(key to value))
+    }
+
+    // All values are written in one record, so either all or none of them are stored.
+    @Synchronized
+    fun putAll(values: Map<String, String>) {
+        if (values.isEmpty()) {
+            return
+        }
+        val entries = load()
+        append(encodeRecord(values))
+        entries.putAll(values)
+        compactIfNeeded()
+    }
+
+    @Synchronized
+    fun delete(key: String) {
+        val entries = load()
+        if (!entries.containsKey(key)) {
+            return
+        }
+        append(encodeRecord(mapOf(key to null)))
+        entries.remove(key)
+        compactIfNeeded()
+    }
+
+    // Forget everything loaded in memory, so that the next access reads the file again.
+    @VisibleForTesting
+    @Synchronized
+    fun clearMemoryCache() {
+        entries = null
+        recordCount = 0
+        secretKey = null
+    }
+
+    private fun load(): HashMap<String, String> {
+        entries?.let { return it }
+        val entries = HashMap<String, String>()
+        recordCount = 0
+        if (file.exists()) {
+            if (isKeyUnusable()) {
+                // The key is gone, for example the app data was restored to another device.
+                // Nothing in the file can be decrypted again.
+                Log.w(LOGTAG, "the key of CompactSecureStore is unusable, resetting it")
+                file.delete()
+            } else {
+                val validLength = readRecords(entries)
+                if (validLength < file.length()) {
+                    Log.w(LOGTAG, "CompactSecureStore has a truncated record, cutting it off")
+                    RandomAccessFile(file, "rw").use { it.setLength(validLength) }
+                }
+            }
+        }
+        this.entries = entries
+        return entries
+    }
+
+    private fun isKeyUnusable(): Boolean {
+        return try {
+            val key = getSecretKey() ?: return true
+            Cipher.getInstance("AES/GCM/NoPadding").init(Cipher.ENCRYPT_MODE, key)
+            false
+        } catch (e: KeyPermanentlyInvalidatedException) {
+            true
+        } catch (e: UnrecoverableKeyException) {
+            true
+        }
+    }
+
+    /**
+     * Apply the records to entries, and return the length of the file up to the end of the last good record.
+     * Reading stops at the first record that is incomplete or does not decrypt, which can only be
+     * the record being appended when the app died, because every append is synced before the next one.
+     */
+    private fun readRecords(entries: HashMap<String, String>): Long {
+        val bytes = file.readBytes()
+        var offset = 0
+        while (bytes.size - offset >= 4) {
+            val length = ((bytes[offset].toInt() and 0xff) shl 24) or
+                ((bytes[offset + 1].toInt() and 0xff) shl 16) or
+                ((bytes[offset + 2].toInt() and 0xff) shl 8) or
+                (bytes[offset + 3].toInt() and 0xff)
+            if (length < IV_LENGTH + TAG_LENGTH || length > bytes.size - offset - 4) {
+                break
+            }
+            val ops = try {
+                decodeRecord(decrypt(bytes.copyOfRange(offset + 4, offset + 4 + length)))
+            } catch (e: GeneralSecurityException) {
+                break
+            } catch (e: IOException) {
+                break
+            }
+            for ((key, value) in ops) {
+                if (value != null) {
+                    entries[key] = value
+                } else {
+                    entries.remove(key)
+                }
+            }
+            recordCount += 1
+            offset += 4 + length
+        }
+        return offset.toLong()
+    }
+
+    // A null value deletes the key.
+    private fun decodeRecord(plaintext: ByteArray): List<Pair<String, String?>> {
+        val ops = ArrayList<Pair<String, String?>>()
+        val data = DataInputStream(ByteArrayInputStream(plaintext))
+        while (data.available() > 0) {
+            val op = data.readByte()
+            val key = readString(data)
+            when (op) {
+                OP_PUT -> ops.add(Pair(key, readString(data)))
+                OP_DELETE -> ops.add(Pair(key, null))
+                else -> throw IOException("unknown op $op")
+            }
+        }
+        return ops
+    }
+
+    private fun readString(data: DataInputStream): String {
+        val length = data.readInt()
+        if (length < 0 || length > data.available()) {
+            throw EOFException()
+        }
+        val bytes = ByteArray(length)
+        data.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    // writeUTF is not used because it cannot write more than 64 KB.
+    private fun writeString(data: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        data.writeInt(bytes.size)
+        data.write(bytes)
+    }
+
+    private fun append(record: ByteArray) {
+        file.parentFile?.mkdirs()
+        FileOutputStream(file, true).use { output ->
+            writeRecord(output, record)
+            output.fd.sync()
+        }
+        recordCount += 1
+    }
+
+    private fun compactIfNeeded() {
+        val entries = this.entries ?: return
+        if (recordCount < COMPACTION_THRESHOLD) {
+            return
+        }
+        val tmp = File(file.parentFile, "${file.name}.tmp")
+        try {
+            FileOutputStream(tmp).use { output ->
+                writeRecord(output, encodeRecord(entries))
+                output.fd.sync()
+            }
+            if (!tmp.renameTo(file)) {
+                throw IOException("failed to rename ${tmp.name}")
+            }
+            recordCount = 1
+        } catch (e: IOException) {
+            // The old file is still intact. Try again on the next write.
+            Log.w(LOGTAG, "failed to compact CompactSecureStore", e)
+            tmp.delete()
+        }
+    }
+
+    private fun writeRecord(output: FileOutputStream, record: ByteArray) {
+        val buffer = ByteArrayOutputStream(4 + record.size)
+        DataOutputStream(buffer).apply {
+            writeInt(record.size)
+            write(record)
+        }
+        // Write the record in one call, so that a crash leaves at most one truncated record.
+        output.write(buffer.toByteArray())
+    }
+
+    // A null value deletes the key.
+    private fun encodeRecord(values: Map<String, String?>): ByteArray {
+        val buffer = ByteArrayOutputStream()
+        DataOutputStream(buffer).apply {
+            for ((key, value) in values) {
+                if (value != null) {
+                    writeByte(OP_PUT.toInt())
+                    writeString(this, key)
+                    writeString(this, value)
+                } else {
+                    writeByte(OP_DELETE.toInt())
+                    writeString(this, key)
+                }
+            }
+        }
+        return encrypt(buffer.toByteArray())
+    }
+
+    private fun encrypt(plaintext: ByteArray): ByteArray {
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        // AndroidKeyStore generates the IV.
+        cipher.init(Cipher.ENCRYPT_MODE, getOrCreateSecretKey())
+        return cipher.iv + cipher.doFinal(plaintext)
+    }
+
+    private fun decrypt(record: ByteArray): ByteArray {
+        val key = getSecretKey() ?: throw GeneralSecurityException("missing key")
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(TAG_LENGTH_BITS, record, 0, IV_LENGTH))
+        return cipher.doFinal(record, IV_LENGTH, record.size - IV_LENGTH)
+    }
+
+    private fun getSecretKey(): SecretKey? {
+        secretKey?.let { return it }
+        val ks = KeyStore.getInstance("AndroidKeyStore")
+        ks.load(null)
+        val key = ks.getKey(KEY_ALIAS, null) as? SecretKey
+        secretKey = key
+        return key
+    }
+
+    private fun getOrCreateSecretKey(): SecretKey {
+        getSecretKey()?.let { return it }
+        val kg = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore")
+        kg.init(
+            KeyGenParameterSpec.Builder(
+                KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
+            )
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build()
+        )
+        val key = kg.generateKey()
+        secretKey = key
+        return key
+    }
+}
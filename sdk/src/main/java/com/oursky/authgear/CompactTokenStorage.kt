@@ -0,0 +1,56 @@
+package com.oursky.authgear
+
+import android.content.Context
+import android.os.Build
+import androidx.annotation.RequiresApi
+import java.time.Instant
+
+/**
+ * A [TokenStorage] backed by a compact encrypted file instead of EncryptedSharedPreferences.
+ *
+ * It is faster to open and to write. It is the default with [StorageEngine.COMPACT].
+ * Switching to it from another given [TokenStorage] does not move the refresh token,
+ * so the user has to sign in again.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class CompactTokenStorage(val context: Context) : TokenStorage {
+    companion object {
+        private const val RefreshToken = "refreshToken"
+        private const val AccessToken = "accessToken"
+        private const val AccessTokenExpireAt = "accessTokenExpireAt"
+    }
+
+    private val store = CompactSecureStore.getInstance(context)
+
+    override fun setRefreshToken(namespace: String, refreshToken: String) {
+        store.put("$namespace.$RefreshToken", refreshToken)
+    }
+
+    override fun getRefreshToken(namespace: String): String? {
+        return store.get("$namespace.$RefreshToken")
+    }
+
+    override fun deleteRefreshToken(namespace: String) {
+        store.delete("$namespace.$RefreshToken")
+    }
+
+    override fun setAccessToken(namespace: String, accessToken: String, expireAt: Instant) {
+        store.putAll(
+            mapOf(
+                "$namespace.$AccessToken" to accessToken,
+                "$namespace.$AccessTokenExpireAt" to expireAt.toEpochMilli().toString()
+            )
+        )
+    }
+
+    override fun getAccessToken(namespace: String): Pair<String, Instant>? {
+        val accessToken = store.get("$namespace.$AccessToken") ?: return null
+        val expireAt = store.get("$namespace.$AccessTokenExpireAt")?.toLongOrNull() ?: return null
+        return Pair(accessToken, Instant.ofEpochMilli(expireAt))
+    }
+
+    override fun deleteAccessToken(namespace: String) {
+        store.delete("$namespace.$AccessToken")
+        store.delete("$namespace.$AccessTokenExpireAt")
+    }
+}
@@ -15,4 +15,8 @@ internal interface ContainerStorage {
     fun getApp2AppDeviceKeyId(namespace: String): String?
     fun setApp2AppDeviceKeyId(namespace: String, keyId: String)
     fun deleteApp2AppDeviceKeyId(namespace: String)
+
+    fun getUserInfoCache(namespace: String): String?
+    fun setUserInfoCache(namespace: String, value: String)
+    fun deleteUserInfoCache(namespace: String)
 }
\ No newline at end of file
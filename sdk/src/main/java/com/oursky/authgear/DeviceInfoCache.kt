@@ -0,0 +1,97 @@
+package com.oursky.authgear
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.Build
+import android.provider.Settings
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Building [DeviceInfoRoot] takes several binder calls to the settings provider and the package manager,
+ * and x_device_info is the same JSON encoded again and again.
+ * Almost nothing in it changes during the lifetime of a process, so it is built once and then reused.
+ *
+ * The snapshot is dropped when something in it may have changed:
+ * - The device name or the bluetooth name is changed in the settings.
+ * - The locale is changed, which may change the application label.
+ * - The package is replaced. Usually the process is killed, but it is cheap to be safe.
+ */
+internal object DeviceInfoCache {
+    private class Snapshot(
+        val deviceInfo: DeviceInfoRoot,
+        val encoded: String
+    )
+
+    @Volatile
+    private var snapshot: Snapshot? = null
+    // Incremented on every invalidation, so that a snapshot built before it is not cached.
+    private val generation = AtomicInteger(0)
+    private val isObserving = AtomicBoolean(false)
+
+    fun get(context: Context): DeviceInfoRoot {
+        return getSnapshot(context).deviceInfo
+    }
+
+    // The value of x_device_info.
+    fun getEncoded(context: Context): String {
+        return getSnapshot(context).encoded
+    }
+
+    fun invalidate() {
+        synchronized(this) {
+            generation.incrementAndGet()
+            snapshot = null
+        }
+    }
+
+    private fun getSnapshot(context: Context): Snapshot {
+        snapshot?.let { return it }
+        val applicationContext = context.applicationContext
+        startObserving(applicationContext)
+        // Building it twice in a race is harmless, both snapshots are the same.
+        val startGeneration = generation.get()
+        val deviceInfo = getDeviceInfo(applicationContext)
+        val newSnapshot = Snapshot(deviceInfo, deviceInfo.toBase64URLEncodedString())
+        synchronized(this) {
+            if (generation.get() == startGeneration) {
+                snapshot = newSnapshot
+            }
+        }
+        return newSnapshot
+    }
+
+    private fun startObserving(context: Context) {
+        if (!isObserving.compareAndSet(false, true)) {
+            return
+        }
+        val observer = object : ContentObserver(null) {
+            override fun onChange(selfChange: Boolean, uri: Uri?) {
+                invalidate()
+            }
+        }
+        val contentResolver = context.contentResolver
+        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.S) {
+            contentResolver.registerContentObserver(Settings.Secure.getUriFor("bluetooth_name"), false, observer)
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+            contentResolver.registerContentObserver(Settings.Global.getUriFor(Settings.Global.DEVICE_NAME), false, observer)
+        }
+
+        val br = object : BroadcastReceiver() {
+            override fun onReceive(context: Context?, intent: Intent?) {
+                invalidate()
+            }
+        }
+        val intentFilter = IntentFilter().apply {
+            addAction(Intent.ACTION_LOCALE_CHANGED)
+            addAction(Intent.ACTION_MY_PACKAGE_REPLACED)
+        }
+        // Both are system broadcasts, so no export flag is needed.
+        context.registerReceiver(br, intentFilter)
+    }
+}
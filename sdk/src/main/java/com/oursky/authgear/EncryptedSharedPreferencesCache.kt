@@ -0,0 +1,91 @@
+package com.oursky.authgear
+
+import android.content.SharedPreferences
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A process-wide cache of EncryptedSharedPreferences handles and their decrypted values, keyed by namespace.
+ *
+ * EncryptedSharedPreferences.create() loads the Tink keysets, and every read decrypts the value again.
+ * Both are too slow to be done for every access to a token.
+ * The storages of the same namespace share one file, so they share one cache entry too.
+ *
+ * Writes go through to disk before the cached value is updated.
+ * The entry of a namespace must be invalidated when its file is deleted, see NOTE(backup).
+ */
+internal object EncryptedSharedPreferencesCache {
+    // ConcurrentHashMap does not allow null values, so a missing value is cached as Value(null).
+    private class Value(val value: String?)
+
+    private class Entry(val pref: SharedPreferences) {
+        val values = ConcurrentHashMap<String, Value>()
+    }
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+
+    fun getString(namespace: String, key: String, create: () -> SharedPreferences): String? {
+        val entry = getEntry(namespace, create)
+        entry.values[key]?.let { return it.value }
+        // Load under the lock so that a concurrent write is not overwritten by a stale value.
+        synchronized(entry) {
+            entry.values[key]?.let { return it.value }
+            val value = entry.pref.getString(key, null)
+            entry.values[key] = Value(value)
+            return value
+        }
+    }
+
+    fun putString(namespace: String, key: String, value: String, create: () -> SharedPreferences) {
+        val entry = getEntry(namespace, create)
+        synchronized(entry) {
+            val committed = entry.pref.edit().putString(key, value).commit()
+            updateValue(entry, key, value, committed)
+        }
+    }
+
+    // All values are written in one commit, so either all or none of them are on disk.
+    fun putStrings(namespace: String, values: Map<String, String>, create: () -> SharedPreferences) {
+        val entry = getEntry(namespace, create)
+        synchronized(entry) {
+            val editor = entry.pref.edit()
+            for ((key, value) in values) {
+                editor.putString(key, value)
+            }
+            val committed = editor.commit()
+            for ((key, value) in values) {
+                updateValue(entry, key, value, committed)
+            }
+        }
+    }
+
+    fun remove(namespace: String, key: String, create: () -> SharedPreferences) {
+        val entry = getEntry(namespace, create)
+        synchronized(entry) {
+            val committed = entry.pref.edit().remove(key).commit()
+            updateValue(entry, key, null, committed)
+        }
+    }
+
+    fun invalidate(namespace: String) {
+        entries.remove(namespace)
+    }
+
+    private fun updateValue(entry: Entry, key: String, value: String?, committed: Boolean) {
+        if (committed) {
+            entry.values[key] = Value(value)
+        } else {
+            // The write failed, what is on disk is unknown. Read it again next time.
+            entry.values.remove(key)
+        }
+    }
+
+    private fun getEntry(namespace: String, create: () -> SharedPreferences): Entry {
+        entries[namespace]?.let { return it }
+        synchronized(this) {
+            entries[namespace]?.let { return it }
+            val entry = Entry(create())
+            entries[namespace] = entry
+            return entry
+        }
+    }
+}
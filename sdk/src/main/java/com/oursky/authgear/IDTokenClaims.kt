@@ -0,0 +1,60 @@
+package com.oursky.authgear
+
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.booleanOrNull
+import kotlinx.serialization.json.contentOrNull
+import kotlinx.serialization.json.jsonPrimitive
+import kotlinx.serialization.json.longOrNull
+import java.util.Date
+
+/**
+ * The claims of the current ID token. It is parsed once when the ID token is received,
+ * so reading it is cheap.
+ *
+ * The ID token is not verified by the sdk, so the claims must not be trusted by a server.
+ * It is immutable. The dates are new instances on every read.
+ */
+class IDTokenClaims internal constructor(
+    val sub: String?,
+    // Epoch seconds, because Date is mutable.
+    private val authTimeSeconds: Long?,
+    private val issuedAtSeconds: Long?,
+    private val expireAtSeconds: Long?,
+    val isAnonymous: Boolean?,
+    val isVerified: Boolean?,
+    val canReauthenticate: Boolean,
+    /**
+     * All claims in the ID token.
+     */
+    val claims: JsonObject
+) {
+    val authTime: Date?
+        get() = authTimeSeconds?.let { Date(it * 1000) }
+
+    val issuedAt: Date?
+        get() = issuedAtSeconds?.let { Date(it * 1000) }
+
+    val expireAt: Date?
+        get() = expireAtSeconds?.let { Date(it * 1000) }
+
+    internal companion object {
+        fun parse(idToken: String): IDTokenClaims {
+            val claims = decodeJWT(idToken)
+            return IDTokenClaims(
+                sub = claims["sub"]?.jsonPrimitive?.contentOrNull,
+                authTimeSeconds = claims.getSeconds("auth_time"),
+                issuedAtSeconds = claims.getSeconds("iat"),
+                expireAtSeconds = claims.getSeconds("exp"),
+                isAnonymous = claims["https://authgear.com/claims/user/is_anonymous"]?.jsonPrimitive?.booleanOrNull,
+                isVerified = claims["https://authgear.com/claims/user/is_verified"]?.jsonPrimitive?.booleanOrNull,
+                canReauthenticate =
+                    claims["https://authgear.com/claims/user/can_reauthenticate"]?.jsonPrimitive?.booleanOrNull ?: false,
+                claims = claims
+            )
+        }
+
+        private fun JsonObject.getSeconds(name: String): Long? {
+            return this[name]?.jsonPrimitive?.longOrNull
+        }
+    }
+}
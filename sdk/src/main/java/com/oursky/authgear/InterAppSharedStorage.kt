@@ -13,5 +13,8 @@ internal interface InterAppSharedStorage {
     fun getDPoPKeyId(namespace: String): String?
     fun deleteDPoPKeyId(namespace: String)
 
+    // Write the values that are not null in one transaction.
+    fun setIDTokenAndDeviceSecret(namespace: String, idToken: String?, deviceSecret: String?)
+
     fun onLogout(namespace: String)
 }
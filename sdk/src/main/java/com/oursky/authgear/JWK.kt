@@ -8,6 +8,7 @@ import kotlinx.serialization.json.JsonPrimitive
 import java.math.BigInteger
 import java.security.MessageDigest
 import java.security.PublicKey
+import java.security.interfaces.ECPublicKey
 import java.security.interfaces.RSAPublicKey
 import kotlin.io.encoding.Base64
 import kotlin.io.encoding.ExperimentalEncodingApi
@@ -17,8 +18,13 @@ internal data class JWK(
     val kid: String,
     val alg: String = "RS256",
     val kty: String = "RSA",
-    val n: String,
-    val e: String
+    // RSA
+    val n: String? = null,
+    val e: String? = null,
+    // EC
+    val crv: String? = null,
+    val x: String? = null,
+    val y: String? = null
 )
 
 internal fun JWK.toJsonObject(): JsonObject {
@@ -26,8 +32,11 @@ internal fun JWK.toJsonObject(): JsonObject {
     m["kid"] = JsonPrimitive(kid)
     m["alg"] = JsonPrimitive(alg)
     m["kty"] = JsonPrimitive(kty)
-    m["n"] = JsonPrimitive(n)
-    m["e"] = JsonPrimitive(e)
+    n?.let { m["n"] = JsonPrimitive(it) }
+    e?.let { m["e"] = JsonPrimitive(it) }
+    crv?.let { m["crv"] = JsonPrimitive(it) }
+    x?.let { m["x"] = JsonPrimitive(it) }
+    y?.let { m["y"] = JsonPrimitive(it) }
     return JsonObject(m)
 }
 
@@ -38,9 +47,17 @@ internal fun JWK.toSHA256Thumbprint(): String {
         "RSA" -> {
             // required members for an RSA public key are e, kty, n
             // in lexicographic order
-            p["e"] = e
+            p["e"] = e!!
             p["kty"] = kty
-            p["n"] = n
+            p["n"] = n!!
+        }
+        "EC" -> {
+            // required members for an EC public key are crv, kty, x, y
+            // in lexicographic order
+            p["crv"] = crv!!
+            p["kty"] = kty
+            p["x"] = x!!
+            p["y"] = y!!
         }
         else -> {
             throw NotImplementedError("unknown kty")
@@ -64,11 +81,33 @@ internal fun BigInteger.toUnsignedByteArray(): ByteArray {
     return bytes.sliceArray(IntRange(startIdx, bytes.size - 1))
 }
 
+// The coordinates of a P-256 point are always encoded in 32 bytes.
+// https://datatracker.ietf.org/doc/html/rfc7518#section-6.2.1.2
+internal fun BigInteger.toUnsignedByteArray(length: Int): ByteArray {
+    val bytes = this.toUnsignedByteArray()
+    if (bytes.size >= length) {
+        return bytes
+    }
+    return ByteArray(length - bytes.size) + bytes
+}
+
 internal fun publicKeyToJWK(kid: String, publicKey: PublicKey): JWK {
-    val rsaPublicKey = publicKey as RSAPublicKey
-    return JWK(
-        kid = kid,
-        n = base64UrlEncode(rsaPublicKey.modulus.toUnsignedByteArray()),
-        e = base64UrlEncode(rsaPublicKey.publicExponent.toUnsignedByteArray())
-    )
+    return when (publicKey) {
+        is RSAPublicKey -> JWK(
+            kid = kid,
+            alg = SigningAlgorithm.RS256.raw,
+            kty = "RSA",
+            n = base64UrlEncode(publicKey.modulus.toUnsignedByteArray()),
+            e = base64UrlEncode(publicKey.publicExponent.toUnsignedByteArray())
+        )
+        is ECPublicKey -> JWK(
+            kid = kid,
+            alg = SigningAlgorithm.ES256.raw,
+            kty = "EC",
+            crv = "P-256",
+            x = base64UrlEncode(publicKey.w.affineX.toUnsignedByteArray(32)),
+            y = base64UrlEncode(publicKey.w.affineY.toUnsignedByteArray(32))
+        )
+        else -> throw NotImplementedError("unknown public key: ${publicKey.algorithm}")
+    }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.oursky.authgear
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.*
 import java.nio.charset.Charset
+import java.security.PrivateKey
 import java.security.Signature
 import java.time.Instant
 
@@ -37,6 +38,8 @@ internal data class JWTPayload(
     val jti: String? = null,
     val htm: String? = null,
     val htu: String? = null,
+    val ath: String? = null,
+    val nonce: String? = null,
     val challenge: String? = null,
     val action: String? = null,
     val deviceInfo: DeviceInfoRoot? = null
@@ -49,12 +52,21 @@ internal data class JWTPayload(
         deviceInfo = deviceInfo
     )
 
-    constructor(now: Instant, jti: String, htu: String, htm: String) : this(
+    constructor(
+        now: Instant,
+        jti: String,
+        htu: String,
+        htm: String,
+        ath: String? = null,
+        nonce: String? = null
+    ) : this(
         iat = now.epochSecond,
         exp = now.epochSecond + 60,
         jti = jti,
         htu = htu,
-        htm = htm
+        htm = htm,
+        ath = ath,
+        nonce = nonce
     )
 }
 
@@ -80,16 +92,97 @@ internal fun JWTPayload.toJsonObject(): JsonObject {
     htm?.let {
         m["htm"] = JsonPrimitive(htm)
     }
+    ath?.let {
+        m["ath"] = JsonPrimitive(ath)
+    }
+    nonce?.let {
+        m["nonce"] = JsonPrimitive(nonce)
+    }
     return JsonObject(m)
 }
 
+internal fun JWTHeader.encode(): String {
+    return base64UrlEncode(Json.encodeToString(toJsonObject()).toUTF8())
+}
+
+internal fun JWTPayload.encode(): String {
+    return base64UrlEncode(Json.encodeToString(toJsonObject()).toUTF8())
+}
+
 internal fun signJWT(signature: Signature, header: JWTHeader, payload: JWTPayload): String {
-    val data = "${base64UrlEncode(Json.encodeToString(header.toJsonObject()).toUTF8())}.${base64UrlEncode(Json.encodeToString(payload.toJsonObject()).toUTF8())}"
+    return signJWT(signature, header.encode(), payload)
+}
+
+/**
+ * Sign a JWT with a header that was encoded beforehand with [JWTHeader.encode].
+ */
+internal fun signJWT(signature: Signature, encodedHeader: String, payload: JWTPayload): String {
+    val data = "$encodedHeader.${payload.encode()}"
     signature.update(data.toUTF8())
-    val sig = signature.sign()
+    var sig = signature.sign()
+    if (signature.algorithm == SIGNATURE_ALGORITHM_ES256) {
+        sig = ecdsaDERToJOSE(sig, 64)
+    }
     return "$data.${base64UrlEncode(sig)}"
 }
 
+private const val SIGNATURE_ALGORITHM_RS256 = "SHA256withRSA"
+private const val SIGNATURE_ALGORITHM_ES256 = "SHA256withECDSA"
+
+internal fun makeSignatureAlgorithm(privateKey: PrivateKey): String {
+    return when (privateKey.algorithm) {
+        "EC" -> SIGNATURE_ALGORITHM_ES256
+        else -> SIGNATURE_ALGORITHM_RS256
+    }
+}
+
+/**
+ * Signature produces an ASN.1 DER encoded ECDSA signature, that is, SEQUENCE { INTEGER r, INTEGER s }.
+ * JWS wants the fixed-length concatenation of r and s instead.
+ * https://datatracker.ietf.org/doc/html/rfc7518#section-3.4
+ */
+internal fun ecdsaDERToJOSE(der: ByteArray, outputLength: Int): ByteArray {
+    val half = outputLength / 2
+    val out = ByteArray(outputLength)
+    var offset = 0
+
+    fun readLength(): Int {
+        val first = der[offset++].toInt() and 0xff
+        if (first and 0x80 == 0) {
+            return first
+        }
+        var length = 0
+        repeat(first and 0x7f) {
+            length = (length shl 8) or (der[offset++].toInt() and 0xff)
+        }
+        return length
+    }
+
+    if (der.isEmpty() || der[offset++] != 0x30.toByte()) {
+        throw AuthgearException("invalid ECDSA signature")
+    }
+    readLength()
+    for (i in 0 until 2) {
+        if (der[offset++] != 0x02.toByte()) {
+            throw AuthgearException("invalid ECDSA signature")
+        }
+        val length = readLength()
+        var start = offset
+        var significantLength = length
+        // INTEGER is signed, so there can be a leading zero byte.
+        while (significantLength > half && der[start] == 0.toByte()) {
+            start += 1
+            significantLength -= 1
+        }
+        if (significantLength > half) {
+            throw AuthgearException("invalid ECDSA signature")
+        }
+        System.arraycopy(der, start, out, i * half + (half - significantLength), significantLength)
+        offset += length
+    }
+    return out
+}
+
 internal fun decodeJWT(jwt: String): JsonObject {
     val parts = jwt.split(".")
     if (parts.size != 3) {
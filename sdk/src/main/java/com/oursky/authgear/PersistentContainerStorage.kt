@@ -17,12 +17,16 @@ internal class PersistentContainerStorage(val context: Context) : ContainerStora
         const val AnonymousKeyId = "anonymousKeyId"
         const val BiometricKeyId = "biometricKeyId"
         const val App2AppDeviceKeyId = "app2appDeviceKeyId"
+        const val UserInfoCache = "userInfoCache"
         const val LOGTAG = "Authgear"
     }
 
-    private val masterKey = MasterKey.Builder(context)
-        .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
-        .build()
+    private val masterKey: MasterKey
+        get() = SharedMasterKey.get(context)
+
+    init {
+        SharedMasterKey.prewarm(context)
+    }
 
     override fun setOidcCodeVerifier(namespace: String, verifier: String) {
         this.setString(namespace, Verifier, verifier)
@@ -66,9 +70,21 @@ internal class PersistentContainerStorage(val context: Context) : ContainerStora
         this.deleteString(namespace, App2AppDeviceKeyId)
     }
 
+    override fun getUserInfoCache(namespace: String): String? {
+        return this.getString(namespace, UserInfoCache)
+    }
+
+    override fun setUserInfoCache(namespace: String, value: String) {
+        this.setString(namespace, UserInfoCache, value)
+    }
+
+    override fun deleteUserInfoCache(namespace: String) {
+        this.deleteString(namespace, UserInfoCache)
+    }
+
     private fun getString(namespace: String, key: String): String? {
         try {
-            return getPref(namespace).getString(key, null)
+            return EncryptedSharedPreferencesCache.getString(namespace, key) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -80,7 +96,7 @@ internal class PersistentContainerStorage(val context: Context) : ContainerStora
 
     private fun setString(namespace: String, key: String, value: String) {
         try {
-            getPref(namespace).edit().putString(key, value).commit()
+            EncryptedSharedPreferencesCache.putString(namespace, key, value) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -93,7 +109,7 @@ internal class PersistentContainerStorage(val context: Context) : ContainerStora
 
     private fun deleteString(namespace: String, key: String) {
         try {
-            getPref(namespace).edit().remove(key).commit()
+            EncryptedSharedPreferencesCache.remove(namespace, key) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -135,6 +151,7 @@ internal class PersistentContainerStorage(val context: Context) : ContainerStora
         // https://github.com/stytchauth/stytch-android/blob/0.23.0/0.1.0/sdk/src/main/java/com/stytch/sdk/common/EncryptionManager.kt#L50
         if (e is InvalidProtocolBufferException || e is GeneralSecurityException || e is IOException) {
             Log.w(LOGTAG, "try to recover from backup problem in PersistentContainerStorage", e)
+            EncryptedSharedPreferencesCache.invalidate(namespace)
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                 context.deleteSharedPreferences(namespace)
             } else {
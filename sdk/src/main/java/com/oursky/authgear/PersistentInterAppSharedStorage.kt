@@ -19,13 +19,16 @@ internal class PersistentInterAppSharedStorage(val context: Context) : InterAppS
         private const val DPoPKeyID = "dpopKeyId"
     }
 
-    private val masterKey = MasterKey.Builder(context)
-        .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
-        .build()
+    private val masterKey: MasterKey
+        get() = SharedMasterKey.get(context)
+
+    init {
+        SharedMasterKey.prewarm(context)
+    }
 
     private fun setItem(namespace: String, key: String, value: String) {
         try {
-            getPref(namespace).edit().putString(key, value).commit()
+            EncryptedSharedPreferencesCache.putString(namespace, key, value) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -36,9 +39,22 @@ internal class PersistentInterAppSharedStorage(val context: Context) : InterAppS
         }
     }
 
+    private fun setItems(namespace: String, values: Map<String, String>) {
+        try {
+            EncryptedSharedPreferencesCache.putStrings(namespace, values) { getPref(namespace) }
+        } catch (e: Exception) {
+            val handled = this.handleBackupProblem(e, namespace)
+            if (handled) {
+                this.setItems(namespace, values)
+                return
+            }
+            throw e
+        }
+    }
+
     private fun getItem(namespace: String, key: String): String? {
         try {
-            return getPref(namespace).getString(key, null)
+            return EncryptedSharedPreferencesCache.getString(namespace, key) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -50,7 +66,7 @@ internal class PersistentInterAppSharedStorage(val context: Context) : InterAppS
 
     private fun deleteItem(namespace: String, key: String) {
         try {
-            getPref(namespace).edit().remove(key).commit()
+            EncryptedSharedPreferencesCache.remove(namespace, key) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -97,6 +113,15 @@ internal class PersistentInterAppSharedStorage(val context: Context) : InterAppS
         deleteItem(namespace, DPoPKeyID)
     }
 
+    override fun setIDTokenAndDeviceSecret(namespace: String, idToken: String?, deviceSecret: String?) {
+        val values = mutableMapOf<String, String>()
+        idToken?.let { values[IDToken] = it }
+        deviceSecret?.let { values[DeviceSecret] = it }
+        if (values.isNotEmpty()) {
+            setItems(namespace, values)
+        }
+    }
+
     override fun onLogout(namespace: String) {
         deleteDeviceSecret(namespace)
         deleteIDToken(namespace)
@@ -134,6 +159,7 @@ internal class PersistentInterAppSharedStorage(val context: Context) : InterAppS
         // https://github.com/stytchauth/stytch-android/blob/0.23.0/0.1.0/sdk/src/main/java/com/stytch/sdk/common/EncryptionManager.kt#L50
         if (e is InvalidProtocolBufferException || e is GeneralSecurityException || e is IOException) {
             Log.w(LOGTAG, "try to recover from backup problem in PersistentTokenStorage", e)
+            EncryptedSharedPreferencesCache.invalidate(namespace)
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                 context.deleteSharedPreferences(namespace)
             } else {
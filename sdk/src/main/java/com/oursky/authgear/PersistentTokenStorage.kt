@@ -10,20 +10,26 @@ import com.google.crypto.tink.shaded.protobuf.InvalidProtocolBufferException
 import java.io.File
 import java.io.IOException
 import java.security.GeneralSecurityException
+import java.time.Instant
 
 class PersistentTokenStorage(val context: Context) : TokenStorage {
     companion object {
         private const val LOGTAG = "Authgear"
         private const val RefreshToken = "refreshToken"
+        private const val AccessToken = "accessToken"
+        private const val AccessTokenExpireAt = "accessTokenExpireAt"
     }
 
-    private val masterKey = MasterKey.Builder(context)
-        .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
-        .build()
+    private val masterKey: MasterKey
+        get() = SharedMasterKey.get(context)
+
+    init {
+        SharedMasterKey.prewarm(context)
+    }
 
     private fun setItem(namespace: String, key: String, value: String) {
         try {
-            getPref(namespace).edit().putString(key, value).commit()
+            EncryptedSharedPreferencesCache.putString(namespace, key, value) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -34,9 +40,22 @@ class PersistentTokenStorage(val context: Context) : TokenStorage {
         }
     }
 
+    private fun setItems(namespace: String, values: Map<String, String>) {
+        try {
+            EncryptedSharedPreferencesCache.putStrings(namespace, values) { getPref(namespace) }
+        } catch (e: Exception) {
+            val handled = this.handleBackupProblem(e, namespace)
+            if (handled) {
+                this.setItems(namespace, values)
+                return
+            }
+            throw e
+        }
+    }
+
     private fun getItem(namespace: String, key: String): String? {
         try {
-            return getPref(namespace).getString(key, null)
+            return EncryptedSharedPreferencesCache.getString(namespace, key) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -48,7 +67,7 @@ class PersistentTokenStorage(val context: Context) : TokenStorage {
 
     private fun deleteItem(namespace: String, key: String) {
         try {
-            getPref(namespace).edit().remove(key).commit()
+            EncryptedSharedPreferencesCache.remove(namespace, key) { getPref(namespace) }
         } catch (e: Exception) {
             val handled = this.handleBackupProblem(e, namespace)
             if (handled) {
@@ -70,6 +89,28 @@ class PersistentTokenStorage(val context: Context) : TokenStorage {
     override fun deleteRefreshToken(namespace: String) {
         deleteItem(namespace, RefreshToken)
     }
+
+    override fun setAccessToken(namespace: String, accessToken: String, expireAt: Instant) {
+        setItems(
+            namespace,
+            mapOf(
+                AccessToken to accessToken,
+                AccessTokenExpireAt to expireAt.toEpochMilli().toString()
+            )
+        )
+    }
+
+    override fun getAccessToken(namespace: String): Pair<String, Instant>? {
+        val accessToken = getItem(namespace, AccessToken) ?: return null
+        val expireAt = getItem(namespace, AccessTokenExpireAt)?.toLongOrNull() ?: return null
+        return Pair(accessToken, Instant.ofEpochMilli(expireAt))
+    }
+
+    override fun deleteAccessToken(namespace: String) {
+        deleteItem(namespace, AccessToken)
+        deleteItem(namespace, AccessTokenExpireAt)
+    }
+
     private fun handleBackupProblem(e: Exception, namespace: String): Boolean {
         // NOTE(backup): Explanation on the backup problem.
         // EncryptedSharedPreferences depends on a master key stored in AndroidKeyStore.
@@ -101,6 +142,7 @@ class PersistentTokenStorage(val context: Context) : TokenStorage {
         // https://github.com/stytchauth/stytch-android/blob/0.23.0/0.1.0/sdk/src/main/java/com/stytch/sdk/common/EncryptionManager.kt#L50
         if (e is InvalidProtocolBufferException || e is GeneralSecurityException || e is IOException) {
             Log.w(LOGTAG, "try to recover from backup problem in PersistentTokenStorage", e)
+            EncryptedSharedPreferencesCache.invalidate(namespace)
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                 context.deleteSharedPreferences(namespace)
             } else {
@@ -0,0 +1,17 @@
+package com.oursky.authgear
+
+/**
+ * These options define whether the sdk refreshes the access token before it expires.
+ *
+ * By default, the access token is refreshed when it is needed, for example in
+ * [Authgear.refreshAccessTokenIfNeeded], so the caller waits for the token endpoint.
+ * When enabled, the access token is refreshed in the background shortly before it expires,
+ * while the app is in the foreground.
+ */
+data class ProactiveRefreshOptions @JvmOverloads constructor(
+    var isEnabled: Boolean,
+    /**
+     * How long before the expiry time the access token is refreshed.
+     */
+    var leadTimeSeconds: Long = 30
+)
@@ -0,0 +1,14 @@
+package com.oursky.authgear
+
+/**
+ * A snapshot of the request coalescing counters of [Authgear].
+ *
+ * When the SDK is asked to make a request that is identical to one already in flight,
+ * for example fetching the user info from several screens at once, the caller waits for
+ * the in-flight request and shares its result instead of sending another one.
+ * [coalescedCount] is the number of requests that were not sent because of this.
+ */
+class RequestCoalescingStats internal constructor(
+    val coalescedCount: Long,
+    val inFlightCount: Int
+)
@@ -0,0 +1,27 @@
+package com.oursky.authgear
+
+/**
+ * These options define whether the sdk retries failed requests to Authgear.
+ *
+ * Only requests that are safe to send again are retried, such as refreshing the access token and fetching the user info,
+ * and only when they failed because of the network or a server error.
+ * The delay between attempts grows exponentially, with jitter so that devices do not retry at the same time.
+ *
+ * When requests keep failing because Authgear timed out or returned a server error, the circuit breaker opens, and requests fail fast with [CircuitBreakerOpenException]
+ * without reaching Authgear, until [circuitBreakerOpenMillis] has passed. Then one request is let through to probe
+ * whether Authgear has recovered. Failures of the device, such as being offline, do not open the circuit breaker.
+ */
+data class RetryOptions @JvmOverloads constructor(
+    var isEnabled: Boolean,
+    /**
+     * The maximum number of attempts of a request, including the first one.
+     */
+    var maxAttempts: Int = 3,
+    var initialBackoffMillis: Long = 250,
+    var maxBackoffMillis: Long = 4_000,
+    /**
+     * The number of consecutive failures that opens the circuit breaker.
+     */
+    var circuitBreakerFailureThreshold: Int = 5,
+    var circuitBreakerOpenMillis: Long = 30_000
+)
@@ -0,0 +1,15 @@
+package com.oursky.authgear
+
+/**
+ * A snapshot of the retry counters of [Authgear]. See [RetryOptions].
+ *
+ * [retryCount] is the number of attempts made after a failed one.
+ * [failFastCount] is the number of requests that were not sent because the circuit breaker was open.
+ * [circuitOpenedCount] is the number of times the circuit breaker has opened.
+ */
+class RetryStats internal constructor(
+    val retryCount: Long,
+    val failFastCount: Long,
+    val circuitOpenedCount: Long,
+    val circuitBreakerState: CircuitBreakerState
+)
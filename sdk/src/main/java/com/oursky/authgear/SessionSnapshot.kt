@@ -0,0 +1,26 @@
+package com.oursky.authgear
+
+import java.time.Instant
+
+/**
+ * The tokens of AuthgearCore at some point in time.
+ *
+ * It is immutable and replaced as a whole, so a reader always sees an access token together with its own expiry.
+ */
+internal data class SessionSnapshot(
+    val refreshToken: String? = null,
+    val accessToken: String? = null,
+    val idToken: String? = null,
+    // Parsed when the ID token is set, so that reading the claims does not parse the ID token again.
+    val idTokenClaims: IDTokenClaims? = null,
+    val expireAt: Instant? = null,
+    val deviceSecret: String? = null
+) {
+    companion object {
+        val EMPTY = SessionSnapshot()
+    }
+
+    fun toTokenSnapshot(): TokenSnapshot {
+        return TokenSnapshot(accessToken, idToken, expireAt)
+    }
+}
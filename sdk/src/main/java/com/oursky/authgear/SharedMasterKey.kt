@@ -0,0 +1,50 @@
+package com.oursky.authgear
+
+import android.content.Context
+import android.util.Log
+import androidx.security.crypto.MasterKey
+import kotlinx.coroutines.asExecutor
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * The MasterKey of the EncryptedSharedPreferences of all persistent storages.
+ *
+ * Building a MasterKey goes to AndroidKeyStore, and may even generate the key.
+ * The storages are usually constructed in Application.onCreate, so they must not build it in their constructors.
+ * Instead, it is built once per process on [Authgear.defaultDispatcher], and whoever needs it first waits for it.
+ * The storages are constructed before, and apart from, the [Authgear] that may have another dispatcher.
+ */
+internal object SharedMasterKey {
+    private const val LOGTAG = "Authgear"
+
+    @Volatile
+    private var masterKey: MasterKey? = null
+    private val isPrewarmStarted = AtomicBoolean(false)
+
+    fun get(context: Context): MasterKey {
+        masterKey?.let { return it }
+        synchronized(this) {
+            masterKey?.let { return it }
+            val key = MasterKey.Builder(context.applicationContext)
+                .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
+                .build()
+            masterKey = key
+            return key
+        }
+    }
+
+    fun prewarm(context: Context) {
+        if (masterKey != null || !isPrewarmStarted.compareAndSet(false, true)) {
+            return
+        }
+        val applicationContext = context.applicationContext
+        Authgear.defaultDispatcher.asExecutor().execute {
+            try {
+                get(applicationContext)
+            } catch (e: Exception) {
+                // It will be built again, and the error thrown, when it is actually needed.
+                Log.w(LOGTAG, "failed to prewarm MasterKey", e)
+            }
+        }
+    }
+}
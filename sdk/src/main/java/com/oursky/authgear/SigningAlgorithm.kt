@@ -0,0 +1,13 @@
+package com.oursky.authgear
+
+/**
+ * The algorithm of the keys generated for anonymous users, app2app and DPoP.
+ *
+ * ES256 keys are generated much faster than RS256 keys in AndroidKeyStore, and they are cheaper to sign with.
+ * Keys generated before the algorithm was changed are still used until they are replaced.
+ * Biometric keys are always RS256.
+ */
+enum class SigningAlgorithm(val raw: String) {
+    RS256("RS256"),
+    ES256("ES256")
+}
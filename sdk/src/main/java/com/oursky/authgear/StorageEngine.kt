@@ -0,0 +1,21 @@
+package com.oursky.authgear
+
+/**
+ * Where the sdk keeps its own data, such as the ID token and the key ids.
+ * The refresh token is kept in the [TokenStorage] given to [Authgear],
+ * or in the storage of the engine if none is given.
+ */
+enum class StorageEngine {
+    /**
+     * EncryptedSharedPreferences. This is the default.
+     */
+    ENCRYPTED_SHARED_PREFERENCES,
+
+    /**
+     * A compact append-only encrypted file, which is faster to open and to write.
+     * It requires API level 23, and falls back to EncryptedSharedPreferences below it.
+     * When the engine is switched, the existing data is moved on [Authgear.configure],
+     * so the user stays signed in.
+     */
+    COMPACT
+}
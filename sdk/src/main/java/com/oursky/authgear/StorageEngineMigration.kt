@@ -0,0 +1,134 @@
+package com.oursky.authgear
+
+import android.content.Context
+import android.os.Build
+import android.util.Log
+
+/**
+ * Moves the data of a namespace into the storages of the [StorageEngine] in use,
+ * when the engine has changed since the last run.
+ *
+ * Without it, a refresh token would still be found while the ID token, the device secret
+ * and the DPoP key id were left behind in the other engine, and the refresh would fail.
+ */
+internal class StorageEngineMigration(
+    private val context: Context,
+    private val namespace: String,
+    private val storageEngine: StorageEngine,
+    private val tokenStorage: TokenStorage,
+    // Only the default token storage depends on the engine.
+    private val isTokenStorageDefault: Boolean,
+    private val sharedStorage: InterAppSharedStorage,
+    private val containerStorage: ContainerStorage
+) {
+    companion object {
+        @Suppress("unused")
+        private val TAG = StorageEngineMigration::class.java.simpleName
+        private const val LOGTAG = "Authgear"
+        private const val PREFERENCES_NAME = "com.authgear.storage_engine"
+
+        fun makeTokenStorage(context: Context, storageEngine: StorageEngine): TokenStorage {
+            return if (storageEngine == StorageEngine.COMPACT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                CompactTokenStorage(context)
+            } else {
+                PersistentTokenStorage(context)
+            }
+        }
+
+        fun makeInterAppSharedStorage(context: Context, storageEngine: StorageEngine): InterAppSharedStorage {
+            return if (storageEngine == StorageEngine.COMPACT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                CompactInterAppSharedStorage(context)
+            } else {
+                PersistentInterAppSharedStorage(context)
+            }
+        }
+
+        fun makeContainerStorage(context: Context, storageEngine: StorageEngine): ContainerStorage {
+            return if (storageEngine == StorageEngine.COMPACT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                CompactContainerStorage(context)
+            } else {
+                PersistentContainerStorage(context)
+            }
+        }
+    }
+
+    @Volatile
+    private var isDone = false
+
+    /**
+     * Must not be called on the main thread. It is safe to run it again after a crash,
+     * because the engine is recorded only after the data is moved.
+     */
+    fun run() {
+        if (isDone) return
+        synchronized(this) {
+            if (isDone) return
+            val preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+            val recorded = preferences.getString(namespace, null)
+            // Before the engine was recorded, there was only EncryptedSharedPreferences.
+            val previousEngine = StorageEngine.values().firstOrNull { it.name == recorded }
+                ?: StorageEngine.ENCRYPTED_SHARED_PREFERENCES
+            if (effectiveEngine(previousEngine) != effectiveEngine(storageEngine)) {
+                Log.i(LOGTAG, "Moving the data of $namespace from $previousEngine to $storageEngine")
+                migrateFrom(previousEngine)
+            }
+            preferences.edit().putString(namespace, storageEngine.name).commit()
+            isDone = true
+        }
+    }
+
+    private fun effectiveEngine(storageEngine: StorageEngine): StorageEngine {
+        // COMPACT falls back to EncryptedSharedPreferences below API level 23.
+        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            storageEngine
+        } else {
+            StorageEngine.ENCRYPTED_SHARED_PREFERENCES
+        }
+    }
+
+    private fun migrateFrom(previousEngine: StorageEngine) {
+        // Write the new storages before deleting from the old ones,
+        // so that nothing is lost if the app dies in between.
+        if (isTokenStorageDefault) {
+            val previousTokenStorage = makeTokenStorage(context, previousEngine)
+            previousTokenStorage.getRefreshToken(namespace)?.let {
+                tokenStorage.setRefreshToken(namespace, it)
+            }
+            previousTokenStorage.getAccessToken(namespace)?.let { (accessToken, expireAt) ->
+                tokenStorage.setAccessToken(namespace, accessToken, expireAt)
+            }
+            previousTokenStorage.deleteRefreshToken(namespace)
+            previousTokenStorage.deleteAccessToken(namespace)
+        }
+
+        val previousSharedStorage = makeInterAppSharedStorage(context, previousEngine)
+        previousSharedStorage.getIDToken(namespace)?.let {
+            sharedStorage.setIDToken(namespace, it)
+        }
+        previousSharedStorage.getDeviceSecret(namespace)?.let {
+            sharedStorage.setDeviceSecret(namespace, it)
+        }
+        previousSharedStorage.getDPoPKeyId(namespace)?.let {
+            sharedStorage.setDPoPKeyId(namespace, it)
+        }
+        previousSharedStorage.deleteIDToken(namespace)
+        previousSharedStorage.deleteDeviceSecret(namespace)
+        previousSharedStorage.deleteDPoPKeyId(namespace)
+
+        val previousContainerStorage = makeContainerStorage(context, previousEngine)
+        previousContainerStorage.getAnonymousKeyId(namespace)?.let {
+            containerStorage.setAnonymousKeyId(namespace, it)
+        }
+        previousContainerStorage.getBiometricKeyId(namespace)?.let {
+            containerStorage.setBiometricKeyId(namespace, it)
+        }
+        previousContainerStorage.getApp2AppDeviceKeyId(namespace)?.let {
+            containerStorage.setApp2AppDeviceKeyId(namespace, it)
+        }
+        previousContainerStorage.deleteAnonymousKeyId(namespace)
+        previousContainerStorage.deleteBiometricKeyId(namespace)
+        previousContainerStorage.deleteApp2AppDeviceKeyId(namespace)
+        // The user info cache is only a cache, so it is fetched again instead.
+        previousContainerStorage.deleteUserInfoCache(namespace)
+    }
+}
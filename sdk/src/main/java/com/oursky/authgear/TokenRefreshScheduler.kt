@@ -0,0 +1,166 @@
+package com.oursky.authgear
+
+import android.app.Activity
+import android.app.ActivityManager
+import android.app.Application
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.math.min
+import kotlin.random.Random
+
+/**
+ * Refreshes the access token shortly before it expires, while the app is in the foreground.
+ *
+ * It is a single coroutine that sleeps until the next refresh time. It is woken up
+ * when the session changes or the app moves between foreground and background.
+ * An in-flight refresh is never cancelled, because other callers may be waiting for it.
+ */
+internal class TokenRefreshScheduler(
+    private val application: Application,
+    private val options: ProactiveRefreshOptions,
+    private val scope: CoroutineScope,
+    // Returns null if there is no session.
+    // Returns Instant.EPOCH if there is a session but the expiry time of the access token is unknown.
+    private val getExpireAt: () -> Instant?,
+    // Refreshes the access token regardless of its expiry time.
+    private val refresh: suspend () -> Unit
+) : Application.ActivityLifecycleCallbacks {
+    companion object {
+        private const val LOGTAG = "Authgear"
+
+        // Prevent refreshing in a tight loop when the server issues very short-lived access tokens.
+        private const val MIN_REFRESH_INTERVAL_MILLIS = 10_000L
+        private const val INITIAL_BACKOFF_MILLIS = 5_000L
+        private const val MAX_BACKOFF_MILLIS = 300_000L
+    }
+
+    private val isStarted = AtomicBoolean(false)
+    private val signal = Channel<Unit>(Channel.CONFLATED)
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Only accessed on the main thread, where the lifecycle callbacks are called.
+    private var startedActivityCount = 0
+
+    @Volatile
+    private var isForeground = false
+
+    fun start() {
+        if (!isStarted.compareAndSet(false, true)) {
+            return
+        }
+        // startedActivityCount is only accessed on the main thread.
+        mainHandler.post {
+            // Authgear may be constructed after an activity has started.
+            val processInfo = ActivityManager.RunningAppProcessInfo()
+            ActivityManager.getMyMemoryState(processInfo)
+            if (processInfo.importance <= ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
+                // The activity in the foreground was started before the callbacks were registered.
+                // Without counting it, stopping another activity would put the app in the background.
+                startedActivityCount = 1
+                isForeground = true
+                signal.trySend(Unit)
+            }
+            application.registerActivityLifecycleCallbacks(this)
+        }
+
+        scope.launch {
+            var failureCount = 0
+            var lastRefreshAt = 0L
+            while (isActive) {
+                val expireAt = if (isForeground) getExpireAt() else null
+                if (expireAt == null) {
+                    signal.receive()
+                    continue
+                }
+                val now = System.currentTimeMillis()
+                val delayMillis = if (failureCount > 0) {
+                    backoffMillis(failureCount)
+                } else {
+                    val refreshAt = expireAt.minusSeconds(options.leadTimeSeconds)
+                    maxOf(
+                        Duration.between(Instant.ofEpochMilli(now), refreshAt).toMillis(),
+                        lastRefreshAt + MIN_REFRESH_INTERVAL_MILLIS - now
+                    )
+                }
+                if (delayMillis > 0) {
+                    val isSignalled = withTimeoutOrNull(delayMillis) { signal.receive() } != null
+                    if (isSignalled) {
+                        // The session or the foreground state has changed. Start over.
+                        // The failures are kept, so that signals do not defeat the backoff.
+                        continue
+                    }
+                }
+                lastRefreshAt = System.currentTimeMillis()
+                try {
+                    refresh()
+                    failureCount = 0
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    failureCount += 1
+                    Log.w(LOGTAG, "failed to refresh access token in background", e)
+                }
+            }
+        }
+    }
+
+    // The coroutine is stopped by cancelling the scope.
+    fun stop() {
+        if (isStarted.get()) {
+            // After the callbacks are registered in start().
+            mainHandler.post {
+                application.unregisterActivityLifecycleCallbacks(this)
+            }
+        }
+        signal.close()
+    }
+
+    fun onSessionChanged() {
+        signal.trySend(Unit)
+    }
+
+    private fun backoffMillis(failureCount: Int): Long {
+        val exponential = INITIAL_BACKOFF_MILLIS shl min(failureCount - 1, 16)
+        val capped = min(exponential, MAX_BACKOFF_MILLIS)
+        // Add jitter so that devices that failed at the same time do not retry at the same time.
+        return capped + Random.nextLong(capped / 4 + 1)
+    }
+
+    override fun onActivityStarted(activity: Activity) {
+        startedActivityCount += 1
+        if (!isForeground) {
+            isForeground = true
+            signal.trySend(Unit)
+        }
+    }
+
+    override fun onActivityStopped(activity: Activity) {
+        startedActivityCount = maxOf(0, startedActivityCount - 1)
+        // A configuration change stops and restarts the activity, but it does not change the result.
+        if (startedActivityCount == 0 && !activity.isChangingConfigurations && isForeground) {
+            isForeground = false
+            signal.trySend(Unit)
+        }
+    }
+
+    override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {}
+
+    override fun onActivityResumed(activity: Activity) {}
+
+    override fun onActivityPaused(activity: Activity) {}
+
+    override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle) {}
+
+    override fun onActivityDestroyed(activity: Activity) {}
+}
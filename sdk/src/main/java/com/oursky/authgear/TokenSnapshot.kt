@@ -0,0 +1,21 @@
+package com.oursky.authgear
+
+import java.time.Instant
+
+/**
+ * The tokens held by [Authgear] at some point in time. See [Authgear.tokensFlow].
+ */
+data class TokenSnapshot(
+    val accessToken: String?,
+    val idToken: String?,
+    /**
+     * The time after which the sdk considers the access token expired and refreshes it.
+     * It is a bit earlier than the actual expiry of the access token.
+     */
+    val expireAt: Instant?
+) {
+    override fun toString(): String {
+        // Do not leak the tokens into logs.
+        return "TokenSnapshot(hasAccessToken=${accessToken != null}, hasIDToken=${idToken != null}, expireAt=$expireAt)"
+    }
+}
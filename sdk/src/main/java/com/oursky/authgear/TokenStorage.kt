@@ -1,7 +1,18 @@
 package com.oursky.authgear
 
+import java.time.Instant
+
 interface TokenStorage {
     fun setRefreshToken(namespace: String, refreshToken: String)
     fun getRefreshToken(namespace: String): String?
     fun deleteRefreshToken(namespace: String)
-}
\ No newline at end of file
+
+    /**
+     * Store the access token and the time the sdk considers it expired.
+     * Only used when isAccessTokenPersistenceEnabled is true in the [Authgear] constructor.
+     * The default implementation stores nothing, so the access token is refreshed after the app restarts.
+     */
+    fun setAccessToken(namespace: String, accessToken: String, expireAt: Instant) {}
+    fun getAccessToken(namespace: String): Pair<String, Instant>? = null
+    fun deleteAccessToken(namespace: String) {}
+}
@@ -1,7 +1,10 @@
 package com.oursky.authgear
 
+import java.time.Instant
+
 class TransientTokenStorage : TokenStorage {
     private var refreshToken: MutableMap<String, String> = mutableMapOf()
+    private var accessToken: MutableMap<String, Pair<String, Instant>> = mutableMapOf()
 
     override fun setRefreshToken(namespace: String, refreshToken: String) {
         this.refreshToken[namespace] = refreshToken
@@ -14,4 +17,16 @@ class TransientTokenStorage : TokenStorage {
     override fun deleteRefreshToken(namespace: String) {
         this.refreshToken.remove(namespace)
     }
+
+    override fun setAccessToken(namespace: String, accessToken: String, expireAt: Instant) {
+        this.accessToken[namespace] = Pair(accessToken, expireAt)
+    }
+
+    override fun getAccessToken(namespace: String): Pair<String, Instant>? {
+        return this.accessToken[namespace]
+    }
+
+    override fun deleteAccessToken(namespace: String) {
+        this.accessToken.remove(namespace)
+    }
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package com.oursky.authgear
+
+import kotlinx.serialization.Serializable
+
+@Serializable
+internal data class UserInfoCacheEntry(
+    // The entry is only used if it belongs to the user of the current ID token.
+    val sub: String,
+    val userInfo: UserInfo,
+    // Epoch milliseconds of the fetch.
+    val fetchedAt: Long,
+    // Set when a new ID token is received, the user info may have changed since then.
+    val isStale: Boolean = false
+)
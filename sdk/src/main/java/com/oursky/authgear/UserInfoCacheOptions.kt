@@ -0,0 +1,15 @@
+package com.oursky.authgear
+
+/**
+ * These options define whether the sdk keeps the last fetched [UserInfo].
+ *
+ * When enabled, the user info is stored encrypted along with the other data of the container,
+ * and [Authgear.fetchUserInfoStaleWhileRevalidate] can return it without waiting for the network.
+ */
+data class UserInfoCacheOptions @JvmOverloads constructor(
+    var isEnabled: Boolean,
+    /**
+     * The cached user info is revalidated in the background once it is older than this.
+     */
+    var maxAgeSeconds: Long = 300
+)
@@ -0,0 +1,22 @@
+package com.oursky.authgear
+
+/**
+ * The outcome of the warm-up started by [Authgear.configure].
+ * A failed step does not fail the warm-up. It is simply done again on demand.
+ */
+class WarmUpResult internal constructor(
+    val steps: List<WarmUpStepResult>,
+    /**
+     * The wall time of the whole warm-up. The steps run in parallel.
+     */
+    val durationMillis: Long
+)
+
+class WarmUpStepResult internal constructor(
+    val step: WarmUpStep,
+    val durationMillis: Long,
+    /**
+     * Non-null if the step failed.
+     */
+    val error: Throwable?
+)
@@ -0,0 +1,27 @@
+package com.oursky.authgear
+
+/**
+ * The steps performed in the background by [Authgear.configure] when warm-up is enabled.
+ */
+enum class WarmUpStep {
+    /**
+     * Load the OpenID Connect discovery document, from the persistent cache if possible.
+     */
+    OIDC_CONFIGURATION,
+
+    /**
+     * Establish the TCP and TLS connection to the Authgear endpoint,
+     * so that it can be reused by the first token request.
+     */
+    CONNECTION,
+
+    /**
+     * Collect the device info sent with token requests.
+     */
+    DEVICE_INFO,
+
+    /**
+     * Load the DPoP key from AndroidKeyStore, or generate it if it does not exist.
+     */
+    DPOP_KEY
+}
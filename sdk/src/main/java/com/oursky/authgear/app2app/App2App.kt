@@ -36,14 +36,14 @@ internal class App2App(
 ) {
     companion object {
         internal fun makeSignature(privateKey: PrivateKey): Signature {
-            val signature = Signature.getInstance("SHA256withRSA")
+            val signature = Signature.getInstance(makeSignatureAlgorithm(privateKey))
             signature.initSign(privateKey)
             return signature
         }
     }
 
     @RequiresApi(Build.VERSION_CODES.M)
-    fun generateApp2AppJWT(forceNewKey: Boolean): String {
+    suspend fun generateApp2AppJWT(forceNewKey: Boolean): String {
         val challenge = oauthRepo.oauthChallenge("app2app_request").token
         val existingKID: String? = storage.getApp2AppDeviceKeyId(namespace)
         val kid: String = if (existingKID == null || forceNewKey) {
@@ -3,5 +3,5 @@ package com.oursky.authgear.data.assetlink
 import android.net.Uri
 
 internal interface AssetLinkRepo {
-    fun getAssetLinks(origin: Uri): List<AssetLink>
+    suspend fun getAssetLinks(origin: Uri): List<AssetLink>
 }
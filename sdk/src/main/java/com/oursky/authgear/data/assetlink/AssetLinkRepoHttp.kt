@@ -2,18 +2,20 @@ package com.oursky.authgear.data.assetlink
 
 import android.net.Uri
 import com.oursky.authgear.net.HTTPClientHelper
-import com.oursky.authgear.net.HTTPClient
 import com.oursky.authgear.net.HTTPRequest
+import com.oursky.authgear.net.SuspendHTTPClient
 import java.net.URI
-import java.nio.charset.StandardCharsets
 
-internal class AssetLinkRepoHttp(private val httpClient: HTTPClient) : AssetLinkRepo {
+internal class AssetLinkRepoHttp(private val httpClient: SuspendHTTPClient) : AssetLinkRepo {
     companion object {
         @Suppress("unused")
         private val TAG = AssetLinkRepoHttp::class.java.simpleName
+
+        // The integrity check blocks the app2app flow, it should not wait for long.
+        private const val TIMEOUT_MILLIS = 10_000L
     }
 
-    override fun getAssetLinks(origin: Uri): List<AssetLink> {
+    override suspend fun getAssetLinks(origin: Uri): List<AssetLink> {
         val assetLinkUri = origin.buildUpon()
             .path("/.well-known/assetlinks.json")
             .clearQuery()
@@ -23,14 +25,12 @@ internal class AssetLinkRepoHttp(private val httpClient: HTTPClient) : AssetLink
             method = "GET",
             headers = hashMapOf(),
             uri = URI(assetLinkUri.toString()),
+            timeoutMillis = TIMEOUT_MILLIS
         )
 
-        val response = this.httpClient.send(request)
-        val responseString = response.body.use {
-            String(it.readBytes(), StandardCharsets.UTF_8)
-        }
-        HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
-        val result: List<AssetLink> = HTTPClientHelper.json.decodeFromString(responseString)
+        // Cancelling the caller aborts the request.
+        val response = this.httpClient.execute(request)
+        val result: List<AssetLink> = HTTPClientHelper.decodeResponse(response)
 
         return result
     }
@@ -4,24 +4,46 @@ import android.os.Build
 import android.security.keystore.KeyGenParameterSpec
 import android.security.keystore.KeyProperties
 import androidx.annotation.RequiresApi
+import com.oursky.authgear.SigningAlgorithm
 import java.security.KeyPair
 import java.security.KeyPairGenerator
 import java.security.KeyStore
+import java.security.spec.ECGenParameterSpec
 
-internal class KeyRepoKeystore : KeyRepo {
+internal class KeyRepoKeystore(
+    private val signingAlgorithm: SigningAlgorithm = SigningAlgorithm.RS256
+) : KeyRepo {
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private fun newKeyGenParameterSpecBuilder(alias: String): KeyGenParameterSpec.Builder {
+        val builder = KeyGenParameterSpec.Builder(
+            alias,
+            KeyProperties.PURPOSE_SIGN or KeyProperties.PURPOSE_VERIFY
+        ).setDigests(KeyProperties.DIGEST_SHA256)
+        when (signingAlgorithm) {
+            SigningAlgorithm.RS256 ->
+                builder.setSignaturePaddings(KeyProperties.SIGNATURE_PADDING_RSA_PKCS1)
+            SigningAlgorithm.ES256 ->
+                builder.setAlgorithmParameterSpec(ECGenParameterSpec("secp256r1"))
+        }
+        return builder
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private fun generateKeyPair(spec: KeyGenParameterSpec): KeyPair {
+        val keyAlgorithm = when (signingAlgorithm) {
+            SigningAlgorithm.RS256 -> KeyProperties.KEY_ALGORITHM_RSA
+            SigningAlgorithm.ES256 -> KeyProperties.KEY_ALGORITHM_EC
+        }
+        val kpg = KeyPairGenerator.getInstance(keyAlgorithm, "AndroidKeyStore")
+        kpg.initialize(spec)
+        return kpg.generateKeyPair()
+    }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     override fun generateAnonymousKey(kid: String): KeyPair {
         val alias = "com.authgear.keys.anonymous.$kid"
-        val kpg = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, "AndroidKeyStore")
-        kpg.initialize(
-            KeyGenParameterSpec.Builder(
-                alias,
-                KeyProperties.PURPOSE_SIGN or KeyProperties.PURPOSE_VERIFY
-            ).setDigests(KeyProperties.DIGEST_SHA256)
-                .setSignaturePaddings(KeyProperties.SIGNATURE_PADDING_RSA_PKCS1).build()
-        )
-        return kpg.generateKeyPair()
+        return generateKeyPair(newKeyGenParameterSpecBuilder(alias).build())
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -45,22 +67,13 @@ internal class KeyRepoKeystore : KeyRepo {
     @RequiresApi(api = Build.VERSION_CODES.M)
     override fun generateApp2AppDeviceKey(kid: String): KeyPair {
         val alias = formatApp2AppDeviceKeyAlias(kid)
-        val builder = KeyGenParameterSpec.Builder(
-            alias,
-            KeyProperties.PURPOSE_SIGN or KeyProperties.PURPOSE_VERIFY
-        )
-            .setDigests(KeyProperties.DIGEST_SHA256)
-            .setSignaturePaddings(KeyProperties.SIGNATURE_PADDING_RSA_PKCS1)
+        val builder = newKeyGenParameterSpecBuilder(alias)
             .setUserAuthenticationRequired(false)
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             builder.setInvalidatedByBiometricEnrollment(false)
         }
-        val spec = builder.build()
-        val kpg =
-            KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, "AndroidKeyStore")
-        kpg.initialize(spec)
-        return kpg.generateKeyPair()
+        return generateKeyPair(builder.build())
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -81,22 +94,13 @@ internal class KeyRepoKeystore : KeyRepo {
     @RequiresApi(api = Build.VERSION_CODES.M)
     override fun generateDPoPKey(kid: String): KeyPair {
         val alias = formatApp2AppDeviceKeyAlias(kid)
-        val builder = KeyGenParameterSpec.Builder(
-            alias,
-            KeyProperties.PURPOSE_SIGN or KeyProperties.PURPOSE_VERIFY
-        )
-            .setDigests(KeyProperties.DIGEST_SHA256)
-            .setSignaturePaddings(KeyProperties.SIGNATURE_PADDING_RSA_PKCS1)
+        val builder = newKeyGenParameterSpecBuilder(alias)
             .setUserAuthenticationRequired(false)
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             builder.setInvalidatedByBiometricEnrollment(false)
         }
-        val spec = builder.build()
-        val kpg =
-            KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_RSA, "AndroidKeyStore")
-        kpg.initialize(spec)
-        return kpg.generateKeyPair()
+        return generateKeyPair(builder.build())
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
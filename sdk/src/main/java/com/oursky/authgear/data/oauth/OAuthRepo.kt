@@ -9,15 +9,17 @@ import com.oursky.authgear.oauth.OidcTokenResponse
 
 /**
  * A thread-safe oauth repository.
+ * Cancelling the calling coroutine aborts the request in progress.
  */
 internal interface OAuthRepo {
     var endpoint: String?
-    fun getOidcConfiguration(): OidcConfiguration
-    fun oidcTokenRequest(request: OidcTokenRequest): OidcTokenResponse
-    fun biometricSetupRequest(accessToken: String, clientId: String, jwt: String)
-    fun oidcRevocationRequest(refreshToken: String)
-    fun oidcUserInfoRequest(accessToken: String): UserInfo
-    fun oauthChallenge(purpose: String): ChallengeResponse
-    fun oauthAppSessionToken(refreshToken: String): AppSessionTokenResponse
-    fun wechatAuthCallback(code: String, state: String)
+    suspend fun getOidcConfiguration(): OidcConfiguration
+    suspend fun warmUpConnection()
+    suspend fun oidcTokenRequest(request: OidcTokenRequest): OidcTokenResponse
+    suspend fun biometricSetupRequest(accessToken: String, clientId: String, jwt: String)
+    suspend fun oidcRevocationRequest(refreshToken: String)
+    suspend fun oidcUserInfoRequest(accessToken: String): UserInfo
+    suspend fun oauthChallenge(purpose: String): ChallengeResponse
+    suspend fun oauthAppSessionToken(refreshToken: String): AppSessionTokenResponse
+    suspend fun wechatAuthCallback(code: String, state: String)
 }
@@ -1,68 +1,185 @@
 package com.oursky.authgear.data.oauth
 
 import android.net.Uri
+import android.util.Log
 import com.oursky.authgear.AuthgearException
 import com.oursky.authgear.GrantType
 import com.oursky.authgear.UserInfo
 import com.oursky.authgear.net.HTTPClientHelper
 import com.oursky.authgear.dpop.DPoPProvider
 import com.oursky.authgear.getOrigin
-import com.oursky.authgear.net.HTTPClient
 import com.oursky.authgear.net.HTTPRequest
 import com.oursky.authgear.net.HTTPResponse
+import com.oursky.authgear.net.SuspendHTTPClient
 import com.oursky.authgear.net.toFormData
 import com.oursky.authgear.oauth.*
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.serialization.encodeToString
 import java.io.ByteArrayInputStream
 import java.io.InputStream
+import java.net.HttpURLConnection
 import java.net.URI
 import java.net.URL
 import java.nio.charset.Charset
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicBoolean
 
 internal class OAuthRepoHttp(
-    private val httpClient: HTTPClient,
-    private val dPoPProvider: DPoPProvider
+    private val httpClient: SuspendHTTPClient,
+    private val dPoPProvider: DPoPProvider,
+    // Runs the background revalidation of the openid-configuration.
+    private val scope: CoroutineScope,
+    private val oidcConfigurationCache: OidcConfigurationCache? = null
 ) : OAuthRepo {
     companion object {
         @Suppress("unused")
         private val TAG = OAuthRepoHttp::class.java.simpleName
+        private const val LOGTAG = "Authgear"
 
         private val UTF_8 = Charset.forName("UTF-8")
+
+        /**
+         * A cached openid-configuration older than this is still served,
+         * but it is revalidated in the background.
+         */
+        private val OIDC_CONFIGURATION_TTL = Duration.ofHours(1)
     }
 
-    private var config: OidcConfiguration? = null
+    @Volatile
+    private var configEntry: OidcConfigurationCacheEntry? = null
+    @Volatile
+    private var hasFetchedOidcConfiguration = false
+    private val isRevalidatingConfig = AtomicBoolean(false)
+    private val configMutex = Mutex()
 
     // Variable assignment is atomic in kotlin so no need to guard
     // If memory ordering becomes a problem, use AtomicReference (instead of synchronize)
     override var endpoint: String? = null
-    override fun getOidcConfiguration(): OidcConfiguration {
+    override suspend fun getOidcConfiguration(): OidcConfiguration {
+        return getOidcConfiguration(revalidateInBackground = true)
+    }
+
+    private suspend fun getOidcConfiguration(revalidateInBackground: Boolean): OidcConfiguration {
         require(endpoint != null) {
             "Missing endpoint in oauth repository"
         }
-        val endpoint = this.endpoint
-        val config = this.config
-        if (config != null) return config
+        val endpoint = this.endpoint!!
+        val configEntry = this.configEntry
+        if (configEntry != null) {
+            if (revalidateInBackground && isStale(configEntry)) {
+                revalidateOidcConfiguration(endpoint, configEntry)
+            }
+            return configEntry.config
+        }
         // Double-checked locking
-        synchronized(this) {
-            val configAfterAcquire = this.config
-            if (configAfterAcquire != null) return configAfterAcquire
-            val response = fetchWithDPoP(
-                uri = URL(URL(endpoint), "/.well-known/openid-configuration").toURI(),
-                method = "GET",
-                headers = mutableMapOf(),
-                requestBodyBytes = null,
-            )
-            val responseString = response.body.use {
-                String(it.readBytes(), UTF_8)
+        configMutex.withLock {
+            val configEntryAfterAcquire = this.configEntry
+            if (configEntryAfterAcquire != null) return configEntryAfterAcquire.config
+            val cachedEntry = oidcConfigurationCache?.get(endpoint)
+            if (cachedEntry != null) {
+                // Serve the persisted configuration right away so that a cold start
+                // does not have to wait for the discovery round-trip.
+                // It is revalidated once per process with a conditional request.
+                this.configEntry = cachedEntry
+                if (revalidateInBackground) {
+                    revalidateOidcConfiguration(endpoint, cachedEntry)
+                }
+                return cachedEntry.config
+            }
+            val newEntry = fetchOidcConfiguration(endpoint, null)
+            this.configEntry = newEntry
+            oidcConfigurationCache?.set(endpoint, newEntry)
+            return newEntry.config
+        }
+    }
+
+    override suspend fun warmUpConnection() {
+        if (hasFetchedOidcConfiguration) {
+            // The connection was established when the configuration was fetched.
+            return
+        }
+        // The revalidation is done here instead of in the background, so that it is sent only once.
+        getOidcConfiguration(revalidateInBackground = false)
+        val entry = this.configEntry
+        if (hasFetchedOidcConfiguration || entry == null) {
+            return
+        }
+        // A revalidation in flight establishes the connection too.
+        if (!isRevalidatingConfig.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            // The configuration was served from the persistent cache.
+            // A conditional request is the cheapest request that establishes the connection,
+            // and it revalidates the configuration at the same time.
+            val newEntry = fetchOidcConfiguration(this.endpoint!!, entry)
+            this.configEntry = newEntry
+            oidcConfigurationCache?.set(this.endpoint!!, newEntry)
+        } finally {
+            isRevalidatingConfig.set(false)
+        }
+    }
+
+    private fun isStale(entry: OidcConfigurationCacheEntry): Boolean {
+        val age = System.currentTimeMillis() - entry.fetchedAt
+        return age < 0 || age > OIDC_CONFIGURATION_TTL.toMillis()
+    }
+
+    private fun revalidateOidcConfiguration(endpoint: String, entry: OidcConfigurationCacheEntry) {
+        if (!isRevalidatingConfig.compareAndSet(false, true)) {
+            return
+        }
+        scope.launch {
+            try {
+                val newEntry = fetchOidcConfiguration(endpoint, entry)
+                this.configEntry = newEntry
+                oidcConfigurationCache?.set(endpoint, newEntry)
+            } catch (e: Exception) {
+                // Keep serving the cached configuration.
+                // It will be revalidated again when it is accessed.
+                Log.w(LOGTAG, "failed to revalidate openid-configuration", e)
+            } finally {
+                isRevalidatingConfig.set(false)
             }
-            HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
-            val newConfig: OidcConfiguration = HTTPClientHelper.json.decodeFromString(responseString)
-            this.config = newConfig
-            return newConfig
         }
     }
 
-    override fun oidcTokenRequest(request: OidcTokenRequest): OidcTokenResponse {
+    private suspend fun fetchOidcConfiguration(
+        endpoint: String,
+        previous: OidcConfigurationCacheEntry?
+    ): OidcConfigurationCacheEntry {
+        val headers = mutableMapOf<String, MutableList<String>>()
+        previous?.etag?.let {
+            headers["if-none-match"] = mutableListOf(it)
+        }
+        previous?.lastModified?.let {
+            headers["if-modified-since"] = mutableListOf(it)
+        }
+        val response = fetchWithDPoP(
+            uri = URL(URL(endpoint), "/.well-known/openid-configuration").toURI(),
+            method = "GET",
+            headers = headers,
+            requestBodyBytes = null,
+        )
+        hasFetchedOidcConfiguration = true
+        val now = System.currentTimeMillis()
+        if (previous != null && response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.body.close()
+            return previous.copy(fetchedAt = now)
+        }
+        val newConfig: OidcConfiguration = HTTPClientHelper.decodeResponse(response)
+        return OidcConfigurationCacheEntry(
+            config = newConfig,
+            etag = HTTPClientHelper.getHeader(response.headers, "etag"),
+            lastModified = HTTPClientHelper.getHeader(response.headers, "last-modified"),
+            fetchedAt = now
+        )
+    }
+
+    override suspend fun oidcTokenRequest(request: OidcTokenRequest): OidcTokenResponse {
         val config = getOidcConfiguration()
         val body = mutableMapOf<String, String>()
         body["grant_type"] = request.grantType.raw
@@ -97,15 +214,11 @@ internal class OAuthRepoHttp(
             headers = headers,
             requestBodyBytes = body.toFormData().toByteArray(UTF_8)
         )
-        val responseString = response.body.use {
-            String(it.readBytes(), UTF_8)
-        }
-        HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
-        val responseBody: OidcTokenResponse = HTTPClientHelper.json.decodeFromString(responseString)
+        val responseBody: OidcTokenResponse = HTTPClientHelper.decodeResponse(response)
         return responseBody
     }
 
-    override fun biometricSetupRequest(accessToken: String, clientId: String, jwt: String) {
+    override suspend fun biometricSetupRequest(accessToken: String, clientId: String, jwt: String) {
         val config = getOidcConfiguration()
         val body = mutableMapOf<String, String>()
         body["client_id"] = clientId
@@ -121,13 +234,12 @@ internal class OAuthRepoHttp(
             ),
             requestBodyBytes = body.toFormData().toByteArray(UTF_8),
         )
-        val responseString = response.body.use {
-            String(it.readBytes(), UTF_8)
+        response.body.use {
+            HTTPClientHelper.throwErrorIfNeeded(response)
         }
-        HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
     }
 
-    override fun oidcRevocationRequest(refreshToken: String) {
+    override suspend fun oidcRevocationRequest(refreshToken: String) {
         val config = getOidcConfiguration()
         val body = mutableMapOf<String, String>()
         body["token"] = refreshToken
@@ -140,13 +252,12 @@ internal class OAuthRepoHttp(
             ),
             requestBodyBytes = body.toFormData().toByteArray(UTF_8)
         )
-        val responseString = response.body.use {
-            String(it.readBytes(), UTF_8)
+        response.body.use {
+            HTTPClientHelper.throwErrorIfNeeded(response)
         }
-        HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
     }
 
-    override fun oidcUserInfoRequest(accessToken: String): UserInfo {
+    override suspend fun oidcUserInfoRequest(accessToken: String): UserInfo {
         val config = getOidcConfiguration()
         val response = fetchWithDPoP(
             uri = URI(config.userInfoEndpoint),
@@ -156,15 +267,11 @@ internal class OAuthRepoHttp(
             ),
             requestBodyBytes = null
         )
-        val responseString = response.body.use {
-            String(it.readBytes(), UTF_8)
-        }
-        HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
-        val responseBody: UserInfo = HTTPClientHelper.json.decodeFromString(responseString)
+        val responseBody: UserInfo = HTTPClientHelper.decodeResponse(response)
         return responseBody
     }
 
-    override fun oauthChallenge(purpose: String): ChallengeResponse {
+    override suspend fun oauthChallenge(purpose: String): ChallengeResponse {
         val body = mutableMapOf<String, String>()
         body["purpose"] = purpose
         val response = fetchWithDPoP(
@@ -175,15 +282,11 @@ internal class OAuthRepoHttp(
             ),
             requestBodyBytes = HTTPClientHelper.json.encodeToString(body).toByteArray(UTF_8),
         )
-        val responseString = response.body.use {
-            String(it.readBytes(), UTF_8)
-        }
-        HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
-        val responseBody: ChallengeResponseResult = HTTPClientHelper.json.decodeFromString(responseString)
+        val responseBody: ChallengeResponseResult = HTTPClientHelper.decodeResponse(response)
         return responseBody.result
     }
 
-    override fun oauthAppSessionToken(refreshToken: String): AppSessionTokenResponse {
+    override suspend fun oauthAppSessionToken(refreshToken: String): AppSessionTokenResponse {
         val body = mutableMapOf<String, String>()
         body["refresh_token"] = refreshToken
         val response = fetchWithDPoP(
@@ -194,15 +297,11 @@ internal class OAuthRepoHttp(
             ),
             requestBodyBytes = HTTPClientHelper.json.encodeToString(body).toByteArray(UTF_8)
         )
-        val responseString = response.body.use {
-            String(it.readBytes(), UTF_8)
-        }
-        HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
-        val responseBody: AppSessionTokenResponseResult = HTTPClientHelper.json.decodeFromString(responseString)
+        val responseBody: AppSessionTokenResponseResult = HTTPClientHelper.decodeResponse(response)
         return responseBody.result
     }
 
-    override fun wechatAuthCallback(code: String, state: String) {
+    override suspend fun wechatAuthCallback(code: String, state: String) {
         val body = mutableMapOf<String, String>()
         body["code"] = code
         body["state"] = state
@@ -215,13 +314,12 @@ internal class OAuthRepoHttp(
             ),
             requestBodyBytes = body.toFormData().toByteArray(UTF_8),
         )
-        val responseString = response.body.use {
-            String(it.readBytes(), UTF_8)
+        response.body.use {
+            HTTPClientHelper.throwErrorIfNeeded(response)
         }
-        HTTPClientHelper.throwErrorIfNeeded(response.statusCode, responseString)
     }
 
-    private fun fetchWithDPoP(
+    private suspend fun fetchWithDPoP(
         uri: URI,
         method: String,
         headers: MutableMap<String, MutableList<String>>,
@@ -240,7 +338,7 @@ internal class OAuthRepoHttp(
             requestBody = ByteArrayInputStream(requestBodyBytes)
         }
 
-        val response = this.httpClient.send(HTTPRequest(
+        val response = this.httpClient.execute(HTTPRequest(
             method = method,
             headers = headers,
             uri = uri,
@@ -250,7 +348,7 @@ internal class OAuthRepoHttp(
         return response
     }
 
-    private fun buildApiUrl(path: String): URI {
+    private suspend fun buildApiUrl(path: String): URI {
         val config = getOidcConfiguration()
         val builder = Uri.parse(config.authorizationEndpoint).getOrigin()?.let {
             Uri.parse(it).buildUpon()
@@ -0,0 +1,278 @@
+package com.oursky.authgear.data.oauth
+
+import com.oursky.authgear.CircuitBreakerOpenException
+import com.oursky.authgear.CircuitBreakerState
+import com.oursky.authgear.GrantType
+import com.oursky.authgear.OAuthException
+import com.oursky.authgear.RetryOptions
+import com.oursky.authgear.RetryStats
+import com.oursky.authgear.ServerException
+import com.oursky.authgear.UserInfo
+import com.oursky.authgear.net.HTTPStatusException
+import com.oursky.authgear.oauth.AppSessionTokenResponse
+import com.oursky.authgear.oauth.ChallengeResponse
+import com.oursky.authgear.oauth.OidcConfiguration
+import com.oursky.authgear.oauth.OidcTokenRequest
+import com.oursky.authgear.oauth.OidcTokenResponse
+import kotlinx.coroutines.delay
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.net.ConnectException
+import java.net.SocketTimeoutException
+import java.net.UnknownHostException
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.min
+import kotlin.random.Random
+
+/**
+ * Opens after a number of consecutive failures, and lets one call through after a while
+ * to probe whether the server has recovered.
+ */
+internal class CircuitBreaker(
+    private val failureThreshold: Int,
+    private val openMillis: Long
+) {
+    private var state = CircuitBreakerState.CLOSED
+    private var consecutiveFailureCount = 0
+    private var openedAt = 0L
+    private var openedCount = 0L
+
+    /**
+     * Throw [CircuitBreakerOpenException] if the call must not be made.
+     * Otherwise, the caller must report the outcome with [onSuccess], [onFailure] or [onAborted].
+     */
+    @Synchronized
+    fun acquire() {
+        when (state) {
+            CircuitBreakerState.CLOSED -> return
+            CircuitBreakerState.OPEN -> {
+                val elapsed = System.currentTimeMillis() - openedAt
+                if (elapsed >= 0 && elapsed < openMillis) {
+                    throw CircuitBreakerOpenException(openMillis - elapsed)
+                }
+                // This call is the probe.
+                state = CircuitBreakerState.HALF_OPEN
+            }
+            CircuitBreakerState.HALF_OPEN -> throw CircuitBreakerOpenException(0)
+        }
+    }
+
+    // The server answered, even if the answer is an error.
+    @Synchronized
+    fun onSuccess() {
+        state = CircuitBreakerState.CLOSED
+        consecutiveFailureCount = 0
+    }
+
+    @Synchronized
+    fun onFailure() {
+        consecutiveFailureCount += 1
+        if (state == CircuitBreakerState.HALF_OPEN || consecutiveFailureCount >= failureThreshold) {
+            state = CircuitBreakerState.OPEN
+            openedAt = System.currentTimeMillis()
+            openedCount += 1
+        }
+    }
+
+    // The call failed before reaching the server. It says nothing about the server.
+    @Synchronized
+    fun onAborted() {
+        if (state == CircuitBreakerState.HALF_OPEN) {
+            // Let the next call probe instead.
+            state = CircuitBreakerState.OPEN
+            openedAt = 0L
+        }
+    }
+
+    @Synchronized
+    fun state(): CircuitBreakerState {
+        return state
+    }
+
+    @Synchronized
+    fun openedCount(): Long {
+        return openedCount
+    }
+}
+
+/**
+ * Retries requests that failed because of the network or a server error, and fails fast
+ * with a circuit breaker while the server keeps failing. See [RetryOptions].
+ *
+ * Only requests that are safe to send again are retried, the same ones that [OAuthRepoSingleFlight] coalesces.
+ * It is placed below [OAuthRepoSingleFlight], so that coalesced callers share the retries.
+ */
+internal class OAuthRepoRetry(
+    private val repo: OAuthRepo,
+    private val options: RetryOptions
+) : OAuthRepo {
+    private val circuitBreaker = CircuitBreaker(
+        options.circuitBreakerFailureThreshold,
+        options.circuitBreakerOpenMillis
+    )
+    private val retryCount = AtomicLong(0)
+    private val failFastCount = AtomicLong(0)
+
+    val stats: RetryStats
+        get() = RetryStats(
+            retryCount = retryCount.get(),
+            failFastCount = failFastCount.get(),
+            circuitOpenedCount = circuitBreaker.openedCount(),
+            circuitBreakerState = circuitBreaker.state()
+        )
+
+    override var endpoint: String?
+        get() = repo.endpoint
+        set(value) {
+            repo.endpoint = value
+        }
+
+    override suspend fun getOidcConfiguration(): OidcConfiguration {
+        // It is usually served from the cache without any request, so the circuit breaker must not block it.
+        return call(isRetryable = true, useCircuitBreaker = false) {
+            repo.getOidcConfiguration()
+        }
+    }
+
+    override suspend fun warmUpConnection() {
+        call(isRetryable = false) {
+            repo.warmUpConnection()
+        }
+    }
+
+    override suspend fun oidcTokenRequest(request: OidcTokenRequest): OidcTokenResponse {
+        val isRetryable = when (request.grantType) {
+            GrantType.REFRESH_TOKEN, GrantType.ID_TOKEN -> true
+            else -> false
+        }
+        // The server may rotate the refresh token when it processes the grant,
+        // so the grant is only sent again if the server has surely not processed it.
+        return call(isRetryable, isRetryableFailure = ::isUnprocessedFailure) {
+            repo.oidcTokenRequest(request)
+        }
+    }
+
+    override suspend fun biometricSetupRequest(accessToken: String, clientId: String, jwt: String) {
+        call(isRetryable = false) {
+            repo.biometricSetupRequest(accessToken, clientId, jwt)
+        }
+    }
+
+    override suspend fun oidcRevocationRequest(refreshToken: String) {
+        call(isRetryable = true) {
+            repo.oidcRevocationRequest(refreshToken)
+        }
+    }
+
+    override suspend fun oidcUserInfoRequest(accessToken: String): UserInfo {
+        return call(isRetryable = true) {
+            repo.oidcUserInfoRequest(accessToken)
+        }
+    }
+
+    override suspend fun oauthChallenge(purpose: String): ChallengeResponse {
+        return call(isRetryable = false) {
+            repo.oauthChallenge(purpose)
+        }
+    }
+
+    override suspend fun oauthAppSessionToken(refreshToken: String): AppSessionTokenResponse {
+        return call(isRetryable = true) {
+            repo.oauthAppSessionToken(refreshToken)
+        }
+    }
+
+    override suspend fun wechatAuthCallback(code: String, state: String) {
+        call(isRetryable = false) {
+            repo.wechatAuthCallback(code, state)
+        }
+    }
+
+    private suspend fun <T> call(
+        isRetryable: Boolean,
+        useCircuitBreaker: Boolean = true,
+        isRetryableFailure: (Exception) -> Boolean = ::isTransientFailure,
+        block: suspend () -> T
+    ): T {
+        if (!options.isEnabled) {
+            return block()
+        }
+        var attempt = 1
+        while (true) {
+            if (useCircuitBreaker) {
+                try {
+                    circuitBreaker.acquire()
+                } catch (e: CircuitBreakerOpenException) {
+                    failFastCount.incrementAndGet()
+                    throw e
+                }
+            }
+            try {
+                val result = block()
+                if (useCircuitBreaker) {
+                    circuitBreaker.onSuccess()
+                }
+                return result
+            } catch (e: Exception) {
+                val isServerFailure = isServerFailure(e)
+                if (useCircuitBreaker) {
+                    when {
+                        isServerFailure -> circuitBreaker.onFailure()
+                        isServerAnswer(e) -> circuitBreaker.onSuccess()
+                        else -> circuitBreaker.onAborted()
+                    }
+                }
+                if (!isRetryable || !isRetryableFailure(e) || attempt >= options.maxAttempts) {
+                    throw e
+                }
+            }
+            retryCount.incrementAndGet()
+            // Unlike sleeping, it does not hold a thread of the dispatcher, and it can be cancelled.
+            delay(backoffMillis(attempt))
+            attempt += 1
+        }
+    }
+
+    internal fun backoffMillis(attempt: Int): Long {
+        val exponential = options.initialBackoffMillis shl min(attempt - 1, 16)
+        val capped = min(exponential, options.maxBackoffMillis)
+        // Jitter, so that devices that failed at the same time do not retry at the same time.
+        return Random.nextLong(capped / 2, capped + 1)
+    }
+
+    // The server failed, or did not answer in time. It counts towards opening the circuit breaker.
+    // Other network failures, such as being offline, say nothing about the server.
+    internal fun isServerFailure(e: Exception): Boolean {
+        return when (e) {
+            is SocketTimeoutException -> true
+            is HTTPStatusException -> e.statusCode >= 500
+            is ServerException -> e.name == "InternalError" || e.name == "ServiceUnavailable"
+            else -> false
+        }
+    }
+
+    // The network or the server failed. The same request may succeed later.
+    internal fun isTransientFailure(e: Exception): Boolean {
+        return when (e) {
+            // The call was cancelled.
+            is InterruptedIOException -> e is SocketTimeoutException
+            is IOException -> true
+            else -> isServerFailure(e)
+        }
+    }
+
+    // The request was not sent, or a gateway rejected it, so the server has not processed it.
+    // A timeout is not one of them, the server may have processed the request before the response was lost.
+    internal fun isUnprocessedFailure(e: Exception): Boolean {
+        return when (e) {
+            is UnknownHostException, is ConnectException -> true
+            is HTTPStatusException -> e.statusCode == 502 || e.statusCode == 503 || e.statusCode == 504
+            else -> false
+        }
+    }
+
+    // The server is up, it rejected the request.
+    internal fun isServerAnswer(e: Exception): Boolean {
+        return e is OAuthException || e is ServerException || e is HTTPStatusException
+    }
+}
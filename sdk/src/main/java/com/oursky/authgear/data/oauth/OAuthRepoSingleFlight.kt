@@ -0,0 +1,132 @@
+package com.oursky.authgear.data.oauth
+
+import com.oursky.authgear.GrantType
+import com.oursky.authgear.RequestCoalescingStats
+import com.oursky.authgear.UserInfo
+import com.oursky.authgear.oauth.AppSessionTokenResponse
+import com.oursky.authgear.oauth.ChallengeResponse
+import com.oursky.authgear.oauth.OidcConfiguration
+import com.oursky.authgear.oauth.OidcTokenRequest
+import com.oursky.authgear.oauth.OidcTokenResponse
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs at most one call per key at a time.
+ * A caller that arrives while a call with the same key is in flight waits for it
+ * and gets its result, or its exception.
+ *
+ * The call runs in [scope], so cancelling one of the callers does not abort the call that the others wait for.
+ * [scope] must have a SupervisorJob, so that a failed call does not cancel it.
+ */
+internal class SingleFlight<K : Any>(private val scope: CoroutineScope) {
+    private val calls = ConcurrentHashMap<K, Deferred<*>>()
+    private val coalescedCount = AtomicLong(0)
+
+    suspend fun <V> execute(key: K, block: suspend () -> V): V {
+        val call = scope.async(start = CoroutineStart.LAZY) { block() }
+        val inFlight = calls.putIfAbsent(key, call)
+        if (inFlight != null) {
+            // The call has not been started.
+            call.cancel()
+            coalescedCount.incrementAndGet()
+            @Suppress("UNCHECKED_CAST")
+            return (inFlight as Deferred<V>).await()
+        }
+        call.invokeOnCompletion { calls.remove(key, call) }
+        call.start()
+        return call.await()
+    }
+
+    fun stats(): RequestCoalescingStats {
+        return RequestCoalescingStats(
+            coalescedCount = coalescedCount.get(),
+            inFlightCount = calls.size
+        )
+    }
+}
+
+/**
+ * Merges identical in-flight requests into one network call.
+ *
+ * Only requests that are safe to share are coalesced, that is, requests whose result
+ * depends only on the endpoint and the credential. Requests that consume a one-time
+ * credential, such as an authorization code or a challenge, are passed through.
+ */
+internal class OAuthRepoSingleFlight(
+    private val repo: OAuthRepo,
+    scope: CoroutineScope
+) : OAuthRepo {
+    private sealed class Key {
+        data class OidcConfiguration(val endpoint: String?) : Key()
+        data class Token(val endpoint: String?, val request: OidcTokenRequest) : Key()
+        data class Revocation(val endpoint: String?, val refreshToken: String) : Key()
+        data class UserInfo(val endpoint: String?, val accessToken: String) : Key()
+        data class AppSessionToken(val endpoint: String?, val refreshToken: String) : Key()
+    }
+
+    private val singleFlight = SingleFlight<Key>(scope)
+
+    val stats: RequestCoalescingStats
+        get() = singleFlight.stats()
+
+    override var endpoint: String?
+        get() = repo.endpoint
+        set(value) {
+            repo.endpoint = value
+        }
+
+    override suspend fun getOidcConfiguration(): OidcConfiguration {
+        return singleFlight.execute(Key.OidcConfiguration(endpoint)) {
+            repo.getOidcConfiguration()
+        }
+    }
+
+    override suspend fun warmUpConnection() {
+        repo.warmUpConnection()
+    }
+
+    override suspend fun oidcTokenRequest(request: OidcTokenRequest): OidcTokenResponse {
+        return when (request.grantType) {
+            GrantType.REFRESH_TOKEN, GrantType.ID_TOKEN ->
+                singleFlight.execute(Key.Token(endpoint, request)) {
+                    repo.oidcTokenRequest(request)
+                }
+            else -> repo.oidcTokenRequest(request)
+        }
+    }
+
+    override suspend fun biometricSetupRequest(accessToken: String, clientId: String, jwt: String) {
+        repo.biometricSetupRequest(accessToken, clientId, jwt)
+    }
+
+    override suspend fun oidcRevocationRequest(refreshToken: String) {
+        singleFlight.execute(Key.Revocation(endpoint, refreshToken)) {
+            repo.oidcRevocationRequest(refreshToken)
+        }
+    }
+
+    override suspend fun oidcUserInfoRequest(accessToken: String): UserInfo {
+        return singleFlight.execute(Key.UserInfo(endpoint, accessToken)) {
+            repo.oidcUserInfoRequest(accessToken)
+        }
+    }
+
+    override suspend fun oauthChallenge(purpose: String): ChallengeResponse {
+        return repo.oauthChallenge(purpose)
+    }
+
+    override suspend fun oauthAppSessionToken(refreshToken: String): AppSessionTokenResponse {
+        return singleFlight.execute(Key.AppSessionToken(endpoint, refreshToken)) {
+            repo.oauthAppSessionToken(refreshToken)
+        }
+    }
+
+    override suspend fun wechatAuthCallback(code: String, state: String) {
+        repo.wechatAuthCallback(code, state)
+    }
+}
@@ -0,0 +1,21 @@
+package com.oursky.authgear.data.oauth
+
+import com.oursky.authgear.oauth.OidcConfiguration
+import kotlinx.serialization.Serializable
+
+/**
+ * A persistent cache of /.well-known/openid-configuration, keyed by the Authgear endpoint.
+ */
+internal interface OidcConfigurationCache {
+    fun get(endpoint: String): OidcConfigurationCacheEntry?
+    fun set(endpoint: String, entry: OidcConfigurationCacheEntry)
+}
+
+@Serializable
+internal data class OidcConfigurationCacheEntry(
+    val config: OidcConfiguration,
+    val etag: String? = null,
+    val lastModified: String? = null,
+    // Epoch milliseconds of the last successful fetch or revalidation.
+    val fetchedAt: Long
+)
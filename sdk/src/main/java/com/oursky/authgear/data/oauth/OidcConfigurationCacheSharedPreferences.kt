@@ -0,0 +1,42 @@
+package com.oursky.authgear.data.oauth
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.util.Log
+import com.oursky.authgear.net.HTTPClientHelper
+import kotlinx.serialization.encodeToString
+
+/**
+ * The discovery document is public information so it is stored in plain SharedPreferences.
+ * Using EncryptedSharedPreferences here would defeat the purpose of the cache,
+ * which is to make the first request after a cold start cheaper.
+ */
+internal class OidcConfigurationCacheSharedPreferences(
+    private val context: Context
+) : OidcConfigurationCache {
+    companion object {
+        private const val LOGTAG = "Authgear"
+        private const val NAME = "com.authgear.oidc_configuration"
+    }
+
+    private val pref: SharedPreferences by lazy {
+        context.getSharedPreferences(NAME, Context.MODE_PRIVATE)
+    }
+
+    override fun get(endpoint: String): OidcConfigurationCacheEntry? {
+        val value = pref.getString(endpoint, null) ?: return null
+        return try {
+            HTTPClientHelper.json.decodeFromString(value)
+        } catch (e: Exception) {
+            // The format of the cache entry has changed, or the entry is corrupted.
+            // Treat it as a cache miss.
+            Log.w(LOGTAG, "failed to decode cached openid-configuration", e)
+            pref.edit().remove(endpoint).apply()
+            null
+        }
+    }
+
+    override fun set(endpoint: String, entry: OidcConfigurationCacheEntry) {
+        pref.edit().putString(endpoint, HTTPClientHelper.json.encodeToString(entry)).apply()
+    }
+}
@@ -0,0 +1,111 @@
+package com.oursky.authgear.dpop
+
+import com.oursky.authgear.JWK
+import com.oursky.authgear.JWTHeader
+import com.oursky.authgear.JWTHeaderType
+import com.oursky.authgear.JWTPayload
+import com.oursky.authgear.base64UrlEncode
+import com.oursky.authgear.encode
+import com.oursky.authgear.makeSignatureAlgorithm
+import com.oursky.authgear.signJWT
+import com.oursky.authgear.toUTF8
+import java.security.MessageDigest
+import java.security.PrivateKey
+import java.security.Signature
+import java.time.Instant
+import java.util.UUID
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Builds DPoP proofs for a single key.
+ *
+ * The header of a DPoP proof is the same for every proof made with the same key,
+ * so it is encoded once. Only the payload is encoded for each proof.
+ */
+internal class DPoPProofBuilder(
+    kid: String,
+    jwk: JWK,
+    private val privateKey: PrivateKey
+) {
+    companion object {
+        // Every initialized Signature holds an AndroidKeyStore operation, and
+        // AndroidKeyStore limits the number of concurrent operations per app.
+        private val MAX_WORKERS = Runtime.getRuntime().availableProcessors().coerceIn(1, 4)
+        private const val WORKER_KEEP_ALIVE_SECONDS = 30L
+
+        // Shared by all keys, so that the number of Signatures in use stays bounded.
+        // Proofs for concurrent requests are signed in parallel, up to the number of workers.
+        private val workers: ThreadPoolExecutor by lazy {
+            ThreadPoolExecutor(
+                MAX_WORKERS,
+                MAX_WORKERS,
+                WORKER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                LinkedBlockingQueue()
+            ) { runnable ->
+                Thread(runnable, "authgear-dpop-signer").apply { isDaemon = true }
+            }.apply {
+                // An idle worker exits and drops its Signatures.
+                allowCoreThreadTimeOut(true)
+            }
+        }
+    }
+
+    private val encodedHeader: String = JWTHeader(
+        typ = JWTHeaderType.DPOPJWT,
+        kid = kid,
+        alg = jwk.alg,
+        jwk = jwk
+    ).encode()
+
+    // Signature is not thread-safe, so each worker keeps its own one for this key.
+    // After sign() returns, it is reset to the state after initSign(), so it can be reused.
+    private val signature = ThreadLocal<Signature>()
+
+    fun build(htm: String, htu: String, accessToken: String? = null, nonce: String? = null): String {
+        val payload = JWTPayload(
+            now = Instant.now(),
+            jti = UUID.randomUUID().toString(),
+            htm = htm,
+            htu = htu,
+            ath = accessToken?.let { computeAccessTokenHash(it) },
+            nonce = nonce
+        )
+        val future = workers.submit(Callable { sign(payload) })
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        } catch (e: InterruptedException) {
+            future.cancel(false)
+            Thread.currentThread().interrupt()
+            throw e
+        }
+    }
+
+    // Run on a worker.
+    private fun sign(payload: JWTPayload): String {
+        val signature = this.signature.get()
+            ?: Signature.getInstance(makeSignatureAlgorithm(privateKey)).apply {
+                initSign(privateKey)
+                this@DPoPProofBuilder.signature.set(this)
+            }
+        try {
+            return signJWT(signature, encodedHeader, payload)
+        } catch (e: Exception) {
+            // The signature is left in an unknown state, do not reuse it.
+            this.signature.remove()
+            throw e
+        }
+    }
+
+    // https://datatracker.ietf.org/doc/html/rfc9449#section-4.2
+    private fun computeAccessTokenHash(accessToken: String): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        return base64UrlEncode(digest.digest(accessToken.toUTF8()))
+    }
+}
@@ -1,6 +1,12 @@
 package com.oursky.authgear.dpop
 
 internal interface DPoPProvider {
-    fun generateDPoPProof(htm: String, htu: String): String?
+    fun generateDPoPProof(htm: String, htu: String): String? {
+        return generateDPoPProof(htm, htu, accessToken = null, nonce = null)
+    }
+    // accessToken is given when the proof is sent to a resource server along with the access token.
+    fun generateDPoPProof(htm: String, htu: String, accessToken: String?, nonce: String?): String?
     fun computeJKT(): String?
-}
\ No newline at end of file
+    // Forget the key held in memory. It must be called when the stored key is removed.
+    fun clearCachedKey()
+}
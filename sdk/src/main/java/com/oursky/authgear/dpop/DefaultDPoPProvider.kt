@@ -3,16 +3,11 @@ package com.oursky.authgear.dpop
 import android.os.Build
 import androidx.annotation.RequiresApi
 import com.oursky.authgear.InterAppSharedStorage
-import com.oursky.authgear.JWTHeader
-import com.oursky.authgear.JWTHeaderType
-import com.oursky.authgear.JWTPayload
+import com.oursky.authgear.JWK
 import com.oursky.authgear.data.key.KeyRepo
 import com.oursky.authgear.publicKeyToJWK
-import com.oursky.authgear.signJWT
 import com.oursky.authgear.toSHA256Thumbprint
 import java.security.KeyPair
-import java.security.Signature
-import java.time.Instant
 import java.util.UUID
 
 internal class DefaultDPoPProvider(
@@ -21,36 +16,67 @@ internal class DefaultDPoPProvider(
     private val keyRepo: KeyRepo
 ) : DPoPProvider {
 
-    override fun generateDPoPProof(htm: String, htu: String): String? {
+    // Everything derived from the key that does not change until the key is removed.
+    private class DPoPKey(
+        val kid: String,
+        val keyPair: KeyPair,
+        val jwk: JWK,
+        val thumbprint: String,
+        val proofBuilder: DPoPProofBuilder
+    )
+
+    // Loading the key involves EncryptedSharedPreferences and AndroidKeyStore,
+    // both are too slow to be done for every request.
+    @Volatile
+    private var cachedKey: DPoPKey? = null
+
+    override fun generateDPoPProof(htm: String, htu: String, accessToken: String?, nonce: String?): String? {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
             return null
         }
-        val (kid, keypair) = getOrCreateDPoPPrivateKey()
-        val jwk = publicKeyToJWK(kid, keypair.public)
-        val header = JWTHeader(
-            typ = JWTHeaderType.DPOPJWT,
-            kid = kid,
-            alg = jwk.alg,
-            jwk = jwk
-        )
-        val payload = JWTPayload(
-            now = Instant.now(),
-            jti = UUID.randomUUID().toString(),
-            htm = htm,
-            htu = htu
-        )
-        val signature = Signature.getInstance("SHA256withRSA")
-        signature.initSign(keypair.private)
-        return signJWT(signature, header, payload)
+        val key = getOrCreateDPoPKey()
+        try {
+            return key.proofBuilder.build(htm = htm, htu = htu, accessToken = accessToken, nonce = nonce)
+        } catch (e: Exception) {
+            // The key could have been removed from AndroidKeyStore behind our back,
+            // or the signature is left in an unknown state.
+            // Load the key again next time.
+            clearCachedKey()
+            throw e
+        }
     }
 
     override fun computeJKT(): String? {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
             return null
         }
-        val (kid, keypair) = getOrCreateDPoPPrivateKey()
-        val jwk = publicKeyToJWK(kid, keypair.public)
-        return jwk.toSHA256Thumbprint()
+        return getOrCreateDPoPKey().thumbprint
+    }
+
+    override fun clearCachedKey() {
+        // Synchronized so that a key being loaded concurrently is not cached after it was cleared.
+        synchronized(this) {
+            cachedKey = null
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private fun getOrCreateDPoPKey(): DPoPKey {
+        cachedKey?.let { return it }
+        synchronized(this) {
+            cachedKey?.let { return it }
+            val (kid, keypair) = getOrCreateDPoPPrivateKey()
+            val jwk = publicKeyToJWK(kid, keypair.public)
+            val key = DPoPKey(
+                kid = kid,
+                keyPair = keypair,
+                jwk = jwk,
+                thumbprint = jwk.toSHA256Thumbprint(),
+                proofBuilder = DPoPProofBuilder(kid, jwk, keypair.private)
+            )
+            cachedKey = key
+            return key
+        }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -1,33 +1,193 @@
 package com.oursky.authgear.net
 
+import com.oursky.authgear.Authgear
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.asExecutor
+import kotlinx.coroutines.suspendCancellableCoroutine
 import java.io.ByteArrayInputStream
-import java.io.ByteArrayOutputStream
+import java.io.FilterInputStream
+import java.io.IOException
 import java.io.InputStream
+import java.io.InterruptedIOException
 import java.io.OutputStream
 import java.net.HttpURLConnection
+import java.net.ProtocolException
+import java.net.SocketTimeoutException
+import java.net.URL
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.resumeWithException
+
+/**
+ * The default [HTTPClient] backed by HttpURLConnection.
+ *
+ * Connections are kept alive and reused across requests to the same host.
+ * @param maxConnectionsPerHost The maximum number of concurrent requests to a single host that are waiting
+ * for the response headers. Requests beyond this limit wait for one of them to receive its headers.
+ * A response body that is not closed does not hold up other requests.
+ * Redirects are followed by the client, so that each request counts towards the limit of its own host.
+ * @param connectTimeoutMillis The timeout of establishing a connection.
+ * @param readTimeoutMillis The timeout of each read from the connection, including the response body.
+ * @param callTimeoutMillis The default deadline of a call, from connecting to receiving the response headers.
+ * It also covers waiting for a connection when [maxConnectionsPerHost] connections are in use.
+ * It can be overridden by [HTTPRequest.timeoutMillis]. 0 means no deadline.
+ * @param dispatcher The dispatcher that runs the blocking part of [execute].
+ * Pass the same dispatcher as [com.oursky.authgear.Authgear] if it is not the default one.
+ */
+open class DefaultHTTPClient @JvmOverloads constructor(
+    maxConnectionsPerHost: Int = DEFAULT_MAX_CONNECTIONS_PER_HOST,
+    private val connectTimeoutMillis: Int = DEFAULT_CONNECT_TIMEOUT_MILLIS,
+    private val readTimeoutMillis: Int = DEFAULT_READ_TIMEOUT_MILLIS,
+    private val callTimeoutMillis: Long = DEFAULT_CALL_TIMEOUT_MILLIS,
+    private val dispatcher: CoroutineDispatcher = Authgear.defaultDispatcher
+) : HTTPClient, SuspendHTTPClient {
+    companion object {
+        const val DEFAULT_MAX_CONNECTIONS_PER_HOST = 5
+        const val DEFAULT_CONNECT_TIMEOUT_MILLIS = 15_000
+        const val DEFAULT_READ_TIMEOUT_MILLIS = 30_000
+        const val DEFAULT_CALL_TIMEOUT_MILLIS = 60_000L
+
+        // How often a call waiting for a connection checks whether it has been cancelled.
+        private const val ACQUIRE_POLL_INTERVAL_MILLIS = 100L
+
+        // The same limit as HttpURLConnection.
+        private const val MAX_REDIRECTS = 20
+
+        // Aborts the calls that have passed their deadline. Shared by all instances.
+        private val watchdog: ScheduledThreadPoolExecutor by lazy {
+            ScheduledThreadPoolExecutor(1) { runnable ->
+                Thread(runnable, "authgear-http-watchdog").apply { isDaemon = true }
+            }.apply {
+                removeOnCancelPolicy = true
+            }
+        }
+    }
+
+    private val connectionPool = HTTPConnectionPool(maxConnectionsPerHost)
+
+    // The call of execute(), passed through the thread to send(), which a subclass may override.
+    private val executingCall = ThreadLocal<Call>()
 
-open class DefaultHTTPClient: HTTPClient {
     override fun send(request: HTTPRequest): HTTPResponse {
+        return send(request, executingCall.get() ?: Call())
+    }
+
+    /**
+     * Cancelling the calling coroutine disconnects the connection, which aborts a connect or a read in progress.
+     * The blocking part of the call runs on the dispatcher given to the constructor.
+     * It goes through [send], so a subclass that overrides [send], for example to add a header, still applies.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    override suspend fun execute(request: HTTPRequest): HTTPResponse {
+        return suspendCancellableCoroutine { continuation ->
+            val call = Call()
+            continuation.invokeOnCancellation { call.cancel() }
+            dispatcher.asExecutor().execute {
+                executingCall.set(call)
+                val response = try {
+                    send(request)
+                } catch (e: Throwable) {
+                    // Ignored if the coroutine has been cancelled.
+                    continuation.resumeWithException(e)
+                    return@execute
+                } finally {
+                    executingCall.remove()
+                }
+                // The response is received just after the coroutine has been cancelled. Release the connection.
+                continuation.resume(response) { response.body.close() }
+            }
+        }
+    }
+
+    private fun send(request: HTTPRequest, call: Call): HTTPResponse {
         val followRedirect = request.followRedirect ?: true
-        val url = request.uri.toURL()
-        val conn = url.openConnection() as HttpURLConnection
+        val timeoutMillis = request.timeoutMillis ?: callTimeoutMillis
+        // The deadline is scheduled first, so that it covers waiting for a connection.
+        val deadline: ScheduledFuture<*>? = if (timeoutMillis > 0) {
+            watchdog.schedule({ call.timeOut() }, timeoutMillis, TimeUnit.MILLISECONDS)
+        } else {
+            null
+        }
+        try {
+            var url = request.uri.toURL()
+            var method = request.method
+            var headers: Map<String, List<String>> = request.headers
+            var body = request.body
+            var redirectCount = 0
+            while (true) {
+                val response = sendOnce(url, method, headers, body, call)
+                if (!followRedirect) {
+                    return response
+                }
+                val location = HTTPClientHelper.getHeader(response.headers, "location") ?: return response
+                val redirect = redirectRequestOf(url, method, headers, response.statusCode, location)
+                    ?: return response
+                redirectCount += 1
+                if (redirectCount > MAX_REDIRECTS) {
+                    response.body.close()
+                    throw ProtocolException("too many redirects: $redirectCount")
+                }
+                // The connection is returned to HttpURLConnection before connecting to the next one.
+                response.body.close()
+                if (redirect.method != method) {
+                    body = null
+                }
+                url = redirect.url
+                method = redirect.method
+                headers = redirect.headers
+            }
+        } catch (e: IOException) {
+            // Disconnecting from another thread surfaces as an arbitrary IOException.
+            if (call.isTimedOut) {
+                throw SocketTimeoutException("call timed out after $timeoutMillis ms").apply { initCause(e) }
+            }
+            throw e
+        } finally {
+            // The deadline does not cover reading the body, which is bounded by the read timeout.
+            deadline?.cancel(false)
+        }
+    }
+
+    private fun sendOnce(
+        url: URL,
+        method: String,
+        headers: Map<String, List<String>>,
+        body: InputStream?,
+        call: Call
+    ): HTTPResponse {
+        val poolKey = connectionPool.keyOf(url)
+        var openedConnection: HttpURLConnection? = null
+        var isAcquired = false
+        var handedOver = false
         try {
-            conn.requestMethod = request.method
-            conn.instanceFollowRedirects = followRedirect
+            acquireConnection(poolKey, call)
+            isAcquired = true
+            // openConnection() does not connect yet.
+            val conn = url.openConnection() as HttpURLConnection
+            openedConnection = conn
+            if (!call.attach(conn)) {
+                throw InterruptedIOException("call cancelled")
+            }
+            conn.connectTimeout = connectTimeoutMillis
+            conn.readTimeout = readTimeoutMillis
+            conn.requestMethod = method
+            conn.instanceFollowRedirects = false
             conn.doInput = true
 
             if (conn.requestMethod != "GET" && conn.requestMethod != "HEAD") {
                 conn.doOutput = true
             }
 
-            for (entry in request.headers) {
+            for (entry in headers) {
                 for (value in entry.value) {
                     conn.addRequestProperty(entry.key, value)
                 }
             }
 
             if (conn.doOutput) {
-                request.body?.let {
+                body?.let {
                     this.transferTo(it, conn.outputStream)
                 }
             }
@@ -43,20 +203,46 @@ open class DefaultHTTPClient: HTTPClient {
                 originalInputStream = conn.inputStream
             }
 
-            // Since we have to call conn.disconnect() in this method,
-            // the original input stream will be closed when this method returns.
-            // Therefore, we copy the original input stream to a byte buffer.
-            // It should not be a problem as the response body should be small.
-            val byteArrayOutputStream = ByteArrayOutputStream()
-            originalInputStream?.use {
-                this.transferTo(originalInputStream, byteArrayOutputStream)
-            }
-            val responseBody = ByteArrayInputStream(byteArrayOutputStream.toByteArray())
+            val connectionHeader = HTTPClientHelper.getHeader(responseHeaders, "connection")
+            val keepAlive = !"close".equals(connectionHeader, ignoreCase = true)
 
-            val response = HTTPResponse(statusCode, responseHeaders, responseBody)
-            return response
+            // The body is streamed from the connection instead of being copied into a buffer.
+            // The connection is held until the caller closes the body, but not its place in the pool.
+            val responseBody = ConnectionBodyInputStream(
+                originalInputStream ?: ByteArrayInputStream(ByteArray(0))
+            ) { reachedEnd ->
+                // Reading the body to the end and closing the stream, instead of calling conn.disconnect(),
+                // returns the socket to the keep-alive pool of HttpURLConnection.
+                if (!reachedEnd || !keepAlive) {
+                    conn.disconnect()
+                }
+            }
+            handedOver = true
+            return HTTPResponse(statusCode, responseHeaders, responseBody)
         } finally {
-            conn.disconnect()
+            call.detach()
+            if (!handedOver) {
+                // The connection is in an unknown state, do not let it go back to HttpURLConnection.
+                openedConnection?.disconnect()
+            }
+            // The headers have arrived, so that a body left open by the caller cannot block the host.
+            if (isAcquired) {
+                connectionPool.release(poolKey)
+            }
+        }
+    }
+
+    // Wait for a connection to the host, until the call is cancelled or has passed its deadline.
+    private fun acquireConnection(poolKey: String, call: Call) {
+        try {
+            while (!connectionPool.tryAcquire(poolKey, ACQUIRE_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (call.isCancelled) {
+                    throw InterruptedIOException("call cancelled")
+                }
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("call interrupted").apply { initCause(e) }
         }
     }
 
@@ -76,4 +262,166 @@ open class DefaultHTTPClient: HTTPClient {
 
         return totalBytes
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Lets another thread abort a call of [DefaultHTTPClient], by disconnecting its connection.
+ */
+private class Call {
+    private var connection: HttpURLConnection? = null
+
+    @Volatile
+    var isCancelled = false
+        private set
+
+    @Volatile
+    var isTimedOut = false
+        private set
+
+    // Return false if the call has been cancelled already.
+    @Synchronized
+    fun attach(connection: HttpURLConnection): Boolean {
+        if (isCancelled) {
+            return false
+        }
+        this.connection = connection
+        return true
+    }
+
+    @Synchronized
+    fun detach() {
+        connection = null
+    }
+
+    @Synchronized
+    fun cancel() {
+        isCancelled = true
+        connection?.disconnect()
+    }
+
+    fun timeOut() {
+        isTimedOut = true
+        cancel()
+    }
+}
+
+/**
+ * The response body of [DefaultHTTPClient].
+ * Closing it releases the underlying connection.
+ */
+private class ConnectionBodyInputStream(
+    input: InputStream,
+    private val onClose: (reachedEnd: Boolean) -> Unit
+) : FilterInputStream(input) {
+    companion object {
+        // The remaining bytes are discarded on close so that the connection can be reused,
+        // unless there are too many of them.
+        private const val MAX_DISCARD_BYTES = 8192L
+    }
+
+    private var reachedEnd = false
+    private var closed = false
+
+    override fun read(): Int {
+        val b = super.read()
+        if (b == -1) {
+            reachedEnd = true
+        }
+        return b
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val n = super.read(b, off, len)
+        if (n == -1) {
+            reachedEnd = true
+        }
+        return n
+    }
+
+    override fun close() {
+        if (closed) {
+            return
+        }
+        closed = true
+        try {
+            if (!reachedEnd) {
+                discardRemaining()
+            }
+            super.close()
+        } catch (e: Exception) {
+            reachedEnd = false
+        } finally {
+            onClose(reachedEnd)
+        }
+    }
+
+    private fun discardRemaining() {
+        val buffer = ByteArray(1024)
+        var discarded = 0L
+        while (discarded <= MAX_DISCARD_BYTES) {
+            val n = read(buffer, 0, buffer.size)
+            if (n == -1) {
+                return
+            }
+            discarded += n
+        }
+    }
+}
+
+/**
+ * The request that [DefaultHTTPClient] sends to follow a redirect.
+ * The request body is sent again only if [method] is unchanged.
+ */
+internal class RedirectRequest(
+    val url: URL,
+    val method: String,
+    val headers: Map<String, List<String>>
+)
+
+// Return null if the response is not a redirect that is followed.
+internal fun redirectRequestOf(
+    url: URL,
+    method: String,
+    headers: Map<String, List<String>>,
+    statusCode: Int,
+    location: String
+): RedirectRequest? {
+    val isMethodKept = statusCode == 307 || statusCode == 308
+    val isRedirect = when (statusCode) {
+        300, 301, 302, 303 -> true
+        // The body cannot be sent again.
+        307, 308 -> method == "GET" || method == "HEAD"
+        else -> false
+    }
+    if (!isRedirect) {
+        return null
+    }
+    val nextURL = URL(url, location)
+    // Like HttpURLConnection, a redirect to another protocol is not followed.
+    if (nextURL.protocol != url.protocol) {
+        return null
+    }
+    val nextMethod = if (!isMethodKept && method != "GET" && method != "HEAD") "GET" else method
+    return RedirectRequest(
+        url = nextURL,
+        method = nextMethod,
+        headers = redirectHeaders(headers, isMethodKept, url.host != nextURL.host)
+    )
+}
+
+// The credentials are only sent to the host they are meant for.
+internal fun redirectHeaders(
+    headers: Map<String, List<String>>,
+    isMethodKept: Boolean,
+    isHostChanged: Boolean
+): Map<String, List<String>> {
+    return headers.filterKeys { name ->
+        when {
+            isHostChanged && (name.equals("authorization", ignoreCase = true) ||
+                name.equals("dpop", ignoreCase = true)) -> false
+            !isMethodKept && (name.equals("content-type", ignoreCase = true) ||
+                name.equals("content-length", ignoreCase = true)) -> false
+            else -> true
+        }
+    }
+}
@@ -1,16 +1,41 @@
 package com.oursky.authgear.net
 
-import com.oursky.authgear.AuthgearException
 import com.oursky.authgear.OAuthException
 import com.oursky.authgear.ServerException
+import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.decodeFromStream
 import org.json.JSONException
 import org.json.JSONObject
+import java.nio.charset.StandardCharsets
 
 internal abstract class HTTPClientHelper {
     companion object {
         val json = Json { ignoreUnknownKeys = true }
 
+        /**
+         * Decode a successful response straight from the body stream.
+         * The body is closed when this function returns.
+         */
+        @OptIn(ExperimentalSerializationApi::class)
+        internal inline fun <reified T> decodeResponse(response: HTTPResponse): T {
+            return response.body.use {
+                throwErrorIfNeeded(response)
+                json.decodeFromStream(it)
+            }
+        }
+
+        /**
+         * Only an error response is read into a String, which is needed to build the exception.
+         * The caller is responsible for closing the body.
+         */
+        internal fun throwErrorIfNeeded(response: HTTPResponse) {
+            if (response.statusCode < 200 || response.statusCode >= 300) {
+                val responseString = String(response.body.readBytes(), StandardCharsets.UTF_8)
+                throwErrorIfNeeded(response.statusCode, responseString)
+            }
+        }
+
         internal fun throwErrorIfNeeded(statusCode: Int, responseString: String) {
             if (statusCode < 200 || statusCode >= 300) {
                 try {
@@ -19,13 +44,24 @@ internal abstract class HTTPClientHelper {
                     if (e != null) {
                         throw e
                     }
-                    throw AuthgearException(responseString)
+                    throw HTTPStatusException(statusCode, responseString)
                 } catch (e: JSONException) {
-                    throw AuthgearException(responseString, e)
+                    throw HTTPStatusException(statusCode, responseString, e)
                 }
             }
         }
 
+        // Header names are case-insensitive.
+        // HttpURLConnection preserves the case sent by the server, and includes the status line with a null key.
+        internal fun getHeader(headers: Map<String, List<String>>, name: String): String? {
+            for (entry in headers) {
+                if (name.equals(entry.key, ignoreCase = true)) {
+                    return entry.value.firstOrNull()
+                }
+            }
+            return null
+        }
+
         private fun makeError(jsonObject: JSONObject): Exception? {
             if (jsonObject.has("error")) {
                 val any = jsonObject.get("error")
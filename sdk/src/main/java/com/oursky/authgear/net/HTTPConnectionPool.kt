@@ -0,0 +1,42 @@
+package com.oursky.authgear.net
+
+import java.net.URL
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * HttpURLConnection owns the sockets and keeps them alive on its own,
+ * as long as the response body is read to the end and the connection is not disconnected.
+ * This class caps the number of concurrent requests per host that are waiting for the response headers.
+ */
+internal class HTTPConnectionPool(
+    private val maxConnectionsPerHost: Int
+) {
+    private val permits = HashMap<String, Semaphore>()
+
+    init {
+        require(maxConnectionsPerHost > 0) {
+            "maxConnectionsPerHost must be positive"
+        }
+    }
+
+    fun keyOf(url: URL): String {
+        val port = if (url.port == -1) url.defaultPort else url.port
+        return "${url.protocol}://${url.host}:$port"
+    }
+
+    // Return false if no connection to the host was released in time.
+    fun tryAcquire(key: String, timeout: Long, unit: TimeUnit): Boolean {
+        val semaphore = synchronized(this) {
+            permits.getOrPut(key) { Semaphore(maxConnectionsPerHost, true) }
+        }
+        return semaphore.tryAcquire(timeout, unit)
+    }
+
+    fun release(key: String) {
+        val semaphore = synchronized(this) {
+            permits[key]
+        } ?: return
+        semaphore.release()
+    }
+}
@@ -7,6 +7,11 @@ public class HTTPRequest internal constructor(
     public val method: String,
     public val headers: MutableMap<String, MutableList<String>>,
     public val uri: URI,
-    internal val body: InputStream? = null,
-    internal val followRedirect: Boolean? = null
+    public val body: InputStream? = null,
+    public val followRedirect: Boolean? = null,
+    /**
+     * The deadline of the whole call, from connecting to receiving the response headers.
+     * Null means the default of the client.
+     */
+    public val timeoutMillis: Long? = null
 )
@@ -2,8 +2,12 @@ package com.oursky.authgear.net
 
 import java.io.InputStream
 
-public class HTTPResponse internal constructor(
+/**
+ * The body is a stream that may be backed by a live connection.
+ * It must be closed after use.
+ */
+public class HTTPResponse(
     public val statusCode: Int,
     public val headers: Map<String, List<String>>,
-    internal val body: InputStream
+    public val body: InputStream
 )
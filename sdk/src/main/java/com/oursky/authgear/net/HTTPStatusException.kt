@@ -0,0 +1,19 @@
+package com.oursky.authgear.net
+
+import com.oursky.authgear.AuthgearException
+
+/**
+ * An error response whose body is not a recognized error, for example the HTML page of a gateway.
+ * The status code is kept so that the sdk can tell whether the request can be retried.
+ */
+internal class HTTPStatusException : AuthgearException {
+    val statusCode: Int
+
+    constructor(statusCode: Int, message: String) : super(message) {
+        this.statusCode = statusCode
+    }
+
+    constructor(statusCode: Int, message: String, cause: Throwable) : super(message, cause) {
+        this.statusCode = statusCode
+    }
+}
@@ -0,0 +1,36 @@
+package com.oursky.authgear.net
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runInterruptible
+
+/**
+ * An HTTP client whose calls can be cancelled.
+ *
+ * Cancelling the calling coroutine aborts the call, including a connect or a read that is in progress.
+ * [DefaultHTTPClient] implements it. Other [HTTPClient] can be adapted with [asSuspendHTTPClient].
+ */
+interface SuspendHTTPClient {
+    suspend fun execute(request: HTTPRequest): HTTPResponse
+}
+
+/**
+ * Adapt a blocking [HTTPClient] to [SuspendHTTPClient].
+ *
+ * If the client does not implement [SuspendHTTPClient] itself, the call is run on [dispatcher]
+ * and cancelling it interrupts the thread, which aborts the call only if the client responds to interruption.
+ */
+@JvmOverloads
+fun HTTPClient.asSuspendHTTPClient(dispatcher: CoroutineDispatcher = Dispatchers.IO): SuspendHTTPClient {
+    if (this is SuspendHTTPClient) {
+        return this
+    }
+    val client = this
+    return object : SuspendHTTPClient {
+        override suspend fun execute(request: HTTPRequest): HTTPResponse {
+            return runInterruptible(dispatcher) {
+                client.send(request)
+            }
+        }
+    }
+}